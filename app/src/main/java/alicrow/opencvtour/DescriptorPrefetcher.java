@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alicrow.opencvtour;
+
+import android.location.Location;
+import android.util.Log;
+
+import com.thanh.photodetector.ImageDetector;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the descriptors of the tour items around the visitor in memory, and evicts those of far-away items to disk,
+ * so that very large tours fit in memory and the items a photo is likely to show are ready before it's taken.
+ *
+ * On each location update, the items are gathered in rings of growing radius: first the tour's item range, which
+ * recognition itself considers, then doubling up to MAX_RANGE_FACTOR times it. The first ring (along with the items
+ * with no location) is always kept; farther rings are kept, nearest first, until the memory budget is spent.
+ * The detector reads and writes descriptor files on a background thread. Updates that arrive while it's busy replace
+ * each other, so only the latest location is acted on, and moves that are small compared to the item range are ignored.
+ *
+ * Register it with LocationService.addListener(), and call stop() once it's removed.
+ */
+public class DescriptorPrefetcher implements LocationService.LocationUpdateListener {
+	private static final String TAG = "DescriptorPrefetcher";
+
+	/// Memory, in bytes, the descriptors of the farther rings may take up
+	public static final long DEFAULT_BUDGET = 32 << 20;
+
+	/// The outermost ring is this many times the tour's item range
+	private static final int MAX_RANGE_FACTOR = 8;
+	/// Fraction of the item range the visitor must move before the rings are gathered again
+	private static final double MIN_MOVE = 0.25;
+
+	private final Tour _tour;
+	private final ImageDetector _detector;
+	private final long _budget;
+	private final ExecutorService _executor;
+	private final AtomicReference<Plan> _pending = new AtomicReference<>();
+	private Location _last_location;    /// location the last plan was made for. Only used on the UI thread.
+
+	/// Items to keep, nearest first; the first `required` of them are kept whatever their size
+	private static class Plan {
+		final List<Long> item_ids;
+		final int required;
+
+		Plan(List<Long> item_ids, int required) {
+			this.item_ids = item_ids;
+			this.required = required;
+		}
+	}
+
+	private final Runnable _prefetch = new Runnable() {
+		@Override
+		public void run() {
+			Plan plan = _pending.getAndSet(null);
+			if(plan == null)
+				return;
+
+			List<Long> kept = new ArrayList<>(plan.item_ids.size());
+			long bytes = 0;
+			for(int i = 0; i < plan.item_ids.size(); ++i) {
+				long item_id = plan.item_ids.get(i);
+				long item_bytes = _detector.itemBytes(item_id);
+				if(i >= plan.required && bytes + item_bytes > _budget)
+					break;
+				kept.add(item_id);
+				bytes += item_bytes;
+			}
+			int paged = _detector.retainItems(kept);
+			Log.d(TAG, "keeping " + kept.size() + " of " + plan.item_ids.size() + " nearby items (" + (bytes >> 10) + " KB); paged " + paged + " images");
+		}
+	};
+
+	public DescriptorPrefetcher(Tour tour) {
+		this(tour, DEFAULT_BUDGET);
+	}
+
+	/**
+	 * @param tour the tour being followed
+	 * @param budget memory, in bytes, the descriptors of the items beyond the item range may take up
+	 */
+	public DescriptorPrefetcher(Tour tour, long budget) {
+		_tour = tour;
+		_detector = tour.getDetector();
+		_budget = budget;
+		_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG);
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Stops prefetching. Work already started is finished in the background.
+	 */
+	public void stop() {
+		_executor.shutdown();
+	}
+
+	@Override
+	public void onLocationUpdated(Location location) {
+		double range = _tour.getItemRange();
+		if(range <= 0 || _executor.isShutdown())
+			return;
+		if(_last_location != null && _last_location.distanceTo(location) < MIN_MOVE * range)
+			return;
+		_last_location = location;
+
+		Set<Long> item_ids = new LinkedHashSet<>(_tour.getItemIdsNear(location, range));
+		int required = item_ids.size();
+		for(double radius = 2 * range; radius <= MAX_RANGE_FACTOR * range; radius *= 2)
+			item_ids.addAll(_tour.getItemIdsNear(location, radius));
+
+		if(_pending.getAndSet(new Plan(new ArrayList<>(item_ids), required)) == null)
+			_executor.execute(_prefetch);
+	}
+}
@@ -41,6 +41,9 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import com.eyeem.recyclerviewtools.adapter.WrapAdapter;
+import com.thanh.photodetector.DescriptorCache;
+import com.thanh.photodetector.DetectorMetrics;
+import com.thanh.photodetector.ImageDetector;
 
 import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
@@ -55,11 +58,13 @@ import java.util.List;
 /**
  * Activity to follow a Tour.
  */
-public class FollowTourActivity extends AppCompatActivity implements View.OnClickListener {
+public class FollowTourActivity extends AppCompatActivity implements View.OnClickListener, View.OnLongClickListener {
 	private static final String TAG = "FollowTourActivity";
 
 	private LocationService.ServiceConnection _connection;
 	private boolean _service_is_bound = false;
+	private DescriptorPrefetcher _prefetcher;
+	private RecognitionWarmer _warmer;
 	private ArrayList<Integer> _visited_item_ids;
 	private ArrayList<TourItem> _remaining_items;
 	private TourItem _current_item;
@@ -69,6 +74,22 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 
 	private TourItemAdapter _adapter;
 
+	/// Lets the user know when the tour's images are ready, if they were still being prepared when the activity started.
+	private final ImageDetector.BuildListener _build_listener = new ImageDetector.BuildListener() {
+		@Override
+		public void onBuildProgress(int completed, int total) {}
+
+		@Override
+		public void onBuildFinished() {
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					Toast.makeText(FollowTourActivity.this, "Tour images ready.", Toast.LENGTH_SHORT).show();
+				}
+			});
+		}
+	};
+
 	class TourItemAdapter extends RecyclerView.Adapter<TourItemAdapter.ViewHolder> {
 		final List<TourItem> _tour_items;
 
@@ -187,12 +208,20 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 		recycler_view.setLayoutManager(new LinearLayoutManager(this));
 
 		findViewById(R.id.fab).setOnClickListener(this);
+		findViewById(R.id.fab).setOnLongClickListener(this);
 		findViewById(R.id.exit_button).setOnClickListener(this);
 		findViewById(R.id.restart_button).setOnClickListener(this);
 
 		if(Tour.getCurrentTour().getGpsEnabled())
 			bindLocationService();
 
+		if(Tour.getCurrentTour().getDetector().isBuilding())
+			Tour.getCurrentTour().getDetector().addBuildListener(_build_listener);
+
+		/// Debug builds time every recognition, so slow ones can be broken down by stage.
+		if(BuildConfig.DEBUG)
+			Tour.getCurrentTour().getDetector().getMetrics().setEnabled(true);
+
 		_visited_item_ids = new ArrayList<>();
 
 		if(savedInstanceState != null) {
@@ -241,8 +270,24 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 		}
 	}
 
+	@Override
+	public boolean onLongClick(View v) {
+		switch(v.getId()) {
+			case R.id.fab:
+				startLiveRecognition();
+				return true;
+		}
+		return false;
+	}
+
 	private void bindLocationService() {
-		_connection = new LocationService.ServiceConnection();
+		/// keep the descriptors of the items around us in memory as we move, so big tours don't have to fit all at once
+		_prefetcher = new DescriptorPrefetcher(Tour.getCurrentTour());
+		/// and get recognition ready for items as we come near them, so the first photo of an item isn't the slowest
+		_warmer = new RecognitionWarmer(Tour.getCurrentTour());
+		ProximityTrigger trigger = new ProximityTrigger(Tour.getCurrentTour(), _warmer);
+		/// ask for fixes less often, and less accurately, while we're far from every item
+		_connection = new LocationService.ServiceConnection(new LocationPolicy(Tour.getCurrentTour()), _prefetcher, trigger);
 		Intent intent = new Intent(getApplicationContext(), LocationService.class);
 		startService(intent);
 		bindService(intent, _connection, Context.BIND_AUTO_CREATE);
@@ -250,9 +295,18 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 	}
 	private void unbindLocationService() {
 		if (_service_is_bound) {
+			_connection.detach();
 			unbindService(_connection);
 			_service_is_bound = false;
 		}
+		if(_prefetcher != null) {
+			_prefetcher.stop();
+			_prefetcher = null;
+		}
+		if(_warmer != null) {
+			_warmer.stop();
+			_warmer = null;
+		}
 	}
 
 	@Override
@@ -260,6 +314,7 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 		super.onDestroy();
 		Log.d(TAG, "onDestroy called");
 		unbindLocationService();
+		Tour.getCurrentTour().getDetector().removeBuildListener(_build_listener);
 
 		/// Unless we're just reconfiguring the UI (due to screen rotation or similar), we should stop location updates, since we only need them when this activity is running.
 		if(!isChangingConfigurations()) {
@@ -287,6 +342,25 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 
 		if(_player != null)
 			stopAudio();
+
+		if(!isChangingConfigurations())
+			dumpDetectorMetrics();
+	}
+
+	/// Writes the recognition timings recorded so far to "detector-metrics.txt" in the app's external files directory.
+	private void dumpDetectorMetrics() {
+		Log.i(TAG, "descriptor cache: " + DescriptorCache.getInstance());
+
+		DetectorMetrics metrics = Tour.getCurrentTour().getDetector().getMetrics();
+		if(!metrics.isEnabled() || metrics.histogram(DetectorMetrics.Stage.TOTAL).count() == 0)
+			return;
+		File file = new File(getExternalFilesDir(null), "detector-metrics.txt");
+		try {
+			metrics.dump(file);
+			Log.i(TAG, "wrote detector metrics to '" + file + "'");
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+		}
 	}
 
 	@Override
@@ -312,33 +386,77 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 
 	/// Identify the item the user took a picture of, and progress accordingly
 	private void identifyItem() {
+		if(!readyToRecognize())
+			return;
+		List<Long> filtered_item_ids = candidateItemIds();
+
+		/// photo_filepath is the filepath we use for temporary images. If this changes, it needs to be changed in Utilities.takePicture() as well.
+		String photo_filepath = new File(getExternalCacheDir(), "temp" + ".jpg").getPath();
 		Tour current_tour = Tour.getCurrentTour();
-		List<TourItem> filtered_items = current_tour.getTourItems();
+		onItemDetected(current_tour.getTourItem(current_tour.getDetector().identifyObject(photo_filepath, filtered_item_ids)));
+	}
 
-		if(current_tour.getGpsEnabled()) {
-			/// Filter out distant tour items
+	/// Recognize the item in front of the camera straight from the camera preview, without taking a picture
+	private void startLiveRecognition() {
+		if(!readyToRecognize())
+			return;
+
+		Intent intent = new Intent(this, LiveRecognitionActivity.class);
+		List<Long> filtered_item_ids = candidateItemIds();
+		if(filtered_item_ids != null) {
+			long[] item_ids = new long[filtered_item_ids.size()];
+			for(int i = 0; i < item_ids.length; ++i)
+				item_ids[i] = filtered_item_ids.get(i);
+			intent.putExtra(LiveRecognitionActivity.EXTRA_ITEM_IDS, item_ids);
+		}
+		startActivityForResult(intent, LiveRecognitionActivity.LIVE_RECOGNITION_REQUEST);
+	}
+
+	/**
+	 * Checks that pictures can be recognized right now: the tour's images are ready and, if GPS is enabled, the
+	 * location is known. Lets the user know if not.
+	 * @return whether pictures can be recognized
+	 */
+	private boolean readyToRecognize() {
+		Tour current_tour = Tour.getCurrentTour();
 
+		ImageDetector detector = current_tour.getDetector();
+		if(detector.isBuilding()) {
+			Toast.makeText(this, "Still preparing tour images (" + detector.buildCompleted() + " of " + detector.buildTotal() + "). Try again in a moment.", Toast.LENGTH_LONG).show();
+			return false;
+		}
+
+		if(current_tour.getGpsEnabled()) {
 			if(_connection.getService() != null)
 				_current_location = _connection.getService().getCurrentLocation();
 			if (_current_location == null) {
 				Log.e(TAG, "got null current location");
 				Toast.makeText(this, "Couldn't determine location. Ensure location is enabled on your device, and/or wait a few seconds and try again.", Toast.LENGTH_LONG).show();
-				return;
+				return false;
 			}
-
-			filtered_items = filterDistantTourItems(filtered_items, _current_location, current_tour.getItemRange());
-		} else
+		} else {
 			_current_location = null;
-
-		List<Long> filtered_item_ids = new ArrayList<>();
-		for(TourItem item : filtered_items) {
-			filtered_item_ids.add(item.getId());
 		}
+		return true;
+	}
 
-		/// photo_filepath is the filepath we use for temporary images. If this changes, it needs to be changed in Utilities.takePicture() as well.
-		String photo_filepath = new File(getExternalCacheDir(), "temp" + ".jpg").getPath();
-		TourItem detected_item = current_tour.getTourItem(current_tour.getDetector().identifyObject(photo_filepath, filtered_item_ids));
+	/**
+	 * Finds the tour items a picture could show. Call readyToRecognize() first.
+	 * @return the ids of the nearby items if GPS is enabled, or null for every item. The detector doesn't page out the
+	 * descriptors of a tour without GPS, so every item can be matched without reading anything back from disk.
+	 */
+	private List<Long> candidateItemIds() {
+		Tour current_tour = Tour.getCurrentTour();
+		if(!current_tour.getGpsEnabled())
+			return null;
+
+		/// Filter out distant tour items
+		return current_tour.getItemIdsNear(_current_location, current_tour.getItemRange());
+	}
 
+	/// Progress according to the item recognized by the camera, or let the user know if nothing was recognized
+	private void onItemDetected(TourItem detected_item) {
+		Tour current_tour = Tour.getCurrentTour();
 		if(detected_item != null) {
 			Log.i(TAG, "detected item named " + detected_item.getName());
 			if(_current_location != null)
@@ -377,27 +495,6 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 		_player = null;
 	}
 
-	/**
-	 * Filters out distant TourItems
-	 * @param items unfiltered list of tour items
-	 * @param current_location the phone's current location
-	 * @param threshold maximum distance, in meters, a tour item can be from us to pass the filter
-	 * @return a filtered list of tour items within threshold meters of current_location
- 	 */
-	private static List<TourItem> filterDistantTourItems(List<TourItem> items, Location current_location, double threshold) {
-		List<TourItem> nearby_items = new ArrayList<>();
-		for(TourItem item : items) {
-			/// if the item is close enough, or doesn't have a location set, we add it to the list
-			if(item.getLocation() == null || current_location.distanceTo(item.getLocation()) < threshold) {
-				nearby_items.add(item);
-			}
-
-			if(item.getLocation() != null)
-				Log.d(TAG, item.getName() + " is " + current_location.distanceTo(item.getLocation()) + " meters away");
-		}
-		return nearby_items;
-	}
-
 	/// Set the current tour item and perform necessary updates
 	private void setCurrentItem(TourItem item) {
 		_current_item = item;
@@ -468,6 +565,8 @@ public class FollowTourActivity extends AppCompatActivity implements View.OnClic
 	public void onActivityResult(int requestCode, int resultCode, Intent data) {
 		if(resultCode == Activity.RESULT_OK && requestCode == Utilities.REQUEST_IMAGE_CAPTURE) {
 			identifyItem();
+		} else if(resultCode == Activity.RESULT_OK && requestCode == LiveRecognitionActivity.LIVE_RECOGNITION_REQUEST) {
+			onItemDetected(Tour.getCurrentTour().getTourItem(data.getLongExtra(LiveRecognitionActivity.EXTRA_DETECTED_ITEM_ID, -1)));
 		}
 	}
 
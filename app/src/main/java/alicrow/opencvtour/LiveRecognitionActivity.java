@@ -0,0 +1,244 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alicrow.opencvtour;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.TextView;
+
+import com.thanh.photodetector.ImageDetector;
+import com.thanh.photodetector.KeyframeTracker;
+import com.thanh.photodetector.RecognitionScheduler;
+import com.thanh.photodetector.TemporalAccumulator;
+
+import org.opencv.android.CameraBridgeViewBase;
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Recognizes tour items straight from the camera preview, rather than from a photo taken by the camera app.
+ *
+ * Frames are recognized by a RecognitionScheduler, using the gray plane of the preview frame (no color conversion,
+ * JPEG encoding or file I/O), while the preview runs at full speed. The scheduler is told when the battery heats up,
+ * so it can recognize less often. The evidence of successive frames is accumulated until it's conclusive.
+ *
+ * Once an item is recognized, it's tracked from frame to frame rather than recognized again, which is much cheaper;
+ * recognition only starts over when tracking is lost. The user taps the status bar to open the recognized item, and
+ * the activity finishes with its id.
+ *
+ * Start it with startActivityForResult(). EXTRA_ITEM_IDS optionally restricts recognition to some tour items; the
+ * result holds the id of the recognized item in EXTRA_DETECTED_ITEM_ID.
+ */
+public class LiveRecognitionActivity extends AppCompatActivity implements CameraBridgeViewBase.CvCameraViewListener2 {
+	private static final String TAG = "LiveRecognition";
+
+	public static final int LIVE_RECOGNITION_REQUEST = 0x0004;
+	public static final String EXTRA_ITEM_IDS = "item_ids";
+	public static final String EXTRA_DETECTED_ITEM_ID = "detected_item_id";
+
+	/// Factor the evidence of earlier frames is multiplied by with every frame
+	private static final double EVIDENCE_DECAY = 0.75;
+	/// How many variances the leading item's lead must be, squared, for it to be accepted
+	private static final double EVIDENCE_CONFIDENCE = 9;
+
+	/// Largest preview size we ask for. The detector scales frames down to 300 pixels anyway, so there's no point in more.
+	private static final int MAX_FRAME_WIDTH = 640;
+	private static final int MAX_FRAME_HEIGHT = 480;
+
+	/// Most recognitions per second. Faster devices rest in between, to save battery.
+	private static final double MAX_RECOGNITION_RATE = 10;
+
+	/// Battery temperatures, in tenths of a degree Celsius, above which we recognize less often.
+	/// Android before API 29 has no thermal status, and the battery is the one sensor every device reports.
+	private static final int WARM_BATTERY_TEMPERATURE = 400;
+	private static final int HOT_BATTERY_TEMPERATURE = 450;
+
+	private CameraBridgeViewBase _camera_view;
+	private TextView _status;
+	private ImageDetector _detector;
+	private BitSet _admissible_slots;   /// null to consider every image
+
+	private RecognitionScheduler _scheduler;
+	private volatile boolean _finished = false;
+	private long _recognized_item_id = -1;  /// item shown as recognized. Only used on the UI thread.
+
+	/// Only used by _recognizer and _recognition_listener. A new worker thread runs them after every onResume(), but the
+	/// scheduler calls them one at a time, and only once the previous worker has exited, so they need no lock.
+	private final TemporalAccumulator _evidence = new TemporalAccumulator(EVIDENCE_DECAY, EVIDENCE_CONFIDENCE);
+	private final KeyframeTracker _tracker = new KeyframeTracker();
+	private volatile boolean _restarted;    /// set on resume, so the camera's new view is recognized from scratch
+
+	private final RecognitionScheduler.Recognizer _recognizer = new RecognitionScheduler.Recognizer() {
+		@Override
+		public long recognize(Mat frame) {
+			if(_restarted) {
+				_restarted = false;
+				_tracker.stop();
+				_evidence.reset();
+			}
+
+			/// follow the recognized item for as long as we can, rather than recognizing it again
+			if(_tracker.isTracking()) {
+				if(_tracker.track(frame))
+					return _tracker.item();
+				_evidence.reset();      /// the camera moved on, so start over
+			}
+
+			long item_id = _detector.accumulateFrame(frame, _admissible_slots, _evidence);
+			if(item_id >= 0 && _detector.startTracking(_tracker, item_id))
+				Log.i(TAG, "recognized item " + item_id + " after " + _evidence.frames() + " frames; tracking it");
+			return item_id;
+		}
+	};
+
+	private final RecognitionScheduler.Listener _recognition_listener = new RecognitionScheduler.Listener() {
+		@Override
+		public void onRecognized(final long item_id) {
+			if(_finished)
+				return;
+
+			final long candidate = (item_id >= 0) ? item_id : _evidence.bestItem();
+			runOnUiThread(new Runnable() {
+				@Override
+				public void run() {
+					showResult(item_id, candidate);
+				}
+			});
+		}
+	};
+
+	/// Tells the scheduler how hot the battery is, whenever the battery reports its state
+	private final BroadcastReceiver _battery_receiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			int temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0);
+			RecognitionScheduler.ThermalState state;
+			if(temperature >= HOT_BATTERY_TEMPERATURE)
+				state = RecognitionScheduler.ThermalState.HOT;
+			else if(temperature >= WARM_BATTERY_TEMPERATURE)
+				state = RecognitionScheduler.ThermalState.WARM;
+			else
+				state = RecognitionScheduler.ThermalState.NORMAL;
+			if(state != _scheduler.getThermalState()) {
+				Log.i(TAG, "battery at " + temperature / 10.0 + " C; thermal state is now " + state);
+				_scheduler.setThermalState(state);
+			}
+		}
+	};
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+		setContentView(R.layout.activity_live_recognition);
+
+		_status = (TextView) findViewById(R.id.recognition_status);
+		_camera_view = (CameraBridgeViewBase) findViewById(R.id.camera_view);
+		_camera_view.setMaxFrameSize(MAX_FRAME_WIDTH, MAX_FRAME_HEIGHT);
+		_camera_view.setCvCameraViewListener(this);
+		_status.setOnClickListener(new View.OnClickListener() {
+			@Override
+			public void onClick(View v) {
+				if(_recognized_item_id >= 0)
+					finishWithItem(_recognized_item_id);
+			}
+		});
+
+		_detector = Tour.getCurrentTour().getDetector();
+		long[] item_ids = getIntent().getLongArrayExtra(EXTRA_ITEM_IDS);
+		if(item_ids != null) {
+			List<Long> ids = new ArrayList<>();
+			for(long id : item_ids)
+				ids.add(id);
+			_admissible_slots = _detector.admissibleSlots(ids);
+		}
+
+		_scheduler = new RecognitionScheduler(_recognizer, _recognition_listener);
+		_scheduler.setMaxRate(MAX_RECOGNITION_RATE);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+		registerReceiver(_battery_receiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		_restarted = true;
+		_scheduler.start();
+		_camera_view.enableView();
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+		_camera_view.disableView();
+		_scheduler.stop();
+		unregisterReceiver(_battery_receiver);
+		Log.i(TAG, "recognized " + _scheduler.recognizedFrames() + " of " + _scheduler.offeredFrames() + " frames, taking " + _scheduler.latency() + " ms each");
+	}
+
+	@Override
+	public void onCameraViewStarted(int width, int height) {
+		Log.i(TAG, "camera preview started at " + width + "x" + height);
+	}
+
+	@Override
+	public void onCameraViewStopped() {}
+
+	@Override
+	public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
+		/// The scheduler drops the frame unless a recognition is due
+		if(!_finished)
+			_scheduler.offer(inputFrame.gray());
+		return inputFrame.rgba();
+	}
+
+	/// Lets the user know which item was recognized, or else which item the frames so far look like, if any
+	private void showResult(long recognized_item_id, long candidate_item_id) {
+		if(recognized_item_id == _recognized_item_id && recognized_item_id >= 0)
+			return;
+		_recognized_item_id = recognized_item_id;
+
+		TourItem item = (candidate_item_id >= 0) ? Tour.getCurrentTour().getTourItem(candidate_item_id) : null;
+		if(item == null)
+			_status.setText("Looking for a tour item...");
+		else if(recognized_item_id >= 0)
+			_status.setText(item.getName() + " (tap to open)");
+		else
+			_status.setText("Recognizing " + item.getName() + "...");
+	}
+
+	private void finishWithItem(long item_id) {
+		_finished = true;
+		Intent result = new Intent();
+		result.putExtra(EXTRA_DETECTED_ITEM_ID, item_id);
+		setResult(RESULT_OK, result);
+		finish();
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alicrow.opencvtour;
+
+import android.location.Location;
+
+import com.google.android.gms.location.LocationRequest;
+
+/**
+ * Decides how often, and how accurately, LocationService asks for the location while a tour is followed, so we don't
+ * pay for a high-accuracy GPS fix every 10 seconds when nothing is nearby.
+ *
+ * The decision rests on the distance from the visitor to the boundary of the nearest item's range (the distance within
+ * which recognition considers an item), less the fix's accuracy:
+ *  - Within range of an item, we keep the usual 10 second, high-accuracy updates, since recognition depends on them.
+ *    A visitor who stands still there (e.g. looking at an exhibit) is asked about less often, up to STATIONARY_INTERVAL.
+ *  - Outside, the next fix is due by the time the visitor could reach the nearest boundary, at their own speed or
+ *    walking speed, whichever is faster, so we never miss an item. While that's over FAR_TIME away, the fix comes from
+ *    Wi-Fi and cell towers rather than GPS.
+ *
+ * Small changes are ignored, since every new request restarts the location provider.
+ */
+public class LocationPolicy {
+	/// Interval, in milliseconds, of updates within range of an item, and before the first fix
+	public static final long DEFAULT_INTERVAL = 10000;
+	public static final int DEFAULT_PRIORITY = LocationRequest.PRIORITY_HIGH_ACCURACY;
+
+	/// Shortest and longest intervals we ask for. Fixes that other apps ask for are taken as often as MIN_INTERVAL.
+	public static final long MIN_INTERVAL = 5000;
+	private static final long MAX_INTERVAL = 120000;
+	/// Longest interval within range of an item, once the visitor stands still
+	private static final long STATIONARY_INTERVAL = 30000;
+	/// Time, in milliseconds, the visitor must be from an item's range for low-power fixes
+	private static final long FAR_TIME = 60000;
+
+	/// Speeds, in meters per second, below which the visitor is standing still, and assumed when they're slower
+	private static final float STATIONARY_SPEED = 0.3f;
+	private static final float WALKING_SPEED = 1.4f;
+
+	/// Smallest relative change of interval that's worth a new request
+	private static final double MIN_CHANGE = 0.25;
+
+	private final Tour _tour;
+	private long _interval = DEFAULT_INTERVAL;
+	private int _priority = DEFAULT_PRIORITY;
+	private boolean _in_range;
+	private Location _last_location;
+
+	public LocationPolicy(Tour tour) {
+		_tour = tour;
+	}
+
+	/**
+	 * Works out the updates needed after a new fix
+	 * @param location the new fix
+	 * @return whether interval() or priority() changed, so the location should be requested again
+	 */
+	public boolean update(Location location) {
+		boolean stationary = isStationary(location);
+		_last_location = location;
+
+		double distance = _tour.getNearestItemDistance(location) - _tour.getItemRange() - location.getAccuracy();
+		long interval;
+		int priority;
+		if(distance <= 0) {
+			/// in range of an item, where recognition needs accurate fixes
+			interval = (stationary && _in_range) ? Math.min(2 * _interval, STATIONARY_INTERVAL) : DEFAULT_INTERVAL;
+			priority = LocationRequest.PRIORITY_HIGH_ACCURACY;
+			_in_range = true;
+		} else {
+			/// ask again halfway to the nearest range, in case the visitor speeds up
+			float speed = Math.max(location.hasSpeed() ? location.getSpeed() : 0, WALKING_SPEED);
+			double time = 1000 * distance / speed;
+			interval = Math.max(MIN_INTERVAL, (long) Math.min(time / 2, MAX_INTERVAL));
+			_in_range = false;
+			priority = (time > FAR_TIME) ? LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY : LocationRequest.PRIORITY_HIGH_ACCURACY;
+		}
+
+		if(priority == _priority && Math.abs(interval - _interval) < MIN_CHANGE * _interval)
+			return false;
+		_interval = interval;
+		_priority = priority;
+		return true;
+	}
+
+	/**
+	 * @return the interval, in milliseconds, to ask for updates at
+	 */
+	public long interval() {
+		return _interval;
+	}
+
+	/**
+	 * @return the LocationRequest priority to ask for updates with
+	 */
+	public int priority() {
+		return _priority;
+	}
+
+	/// Whether the visitor hasn't moved since the last fix, by more than the fixes' accuracy
+	private boolean isStationary(Location location) {
+		if(location.hasSpeed())
+			return location.getSpeed() < STATIONARY_SPEED;
+		if(_last_location == null)
+			return false;
+		return location.distanceTo(_last_location) <= Math.max(location.getAccuracy(), _last_location.getAccuracy());
+	}
+}
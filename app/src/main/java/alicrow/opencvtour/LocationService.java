@@ -50,6 +50,8 @@ public class LocationService extends Service implements GoogleApiClient.Connecti
 	private LocationRequest _location_request;
 	private Location _current_location;
 	private ArrayList<LocationUpdateListener> _listeners;
+	private LocationPolicy _policy;     /// adapts the requested updates to each fix, or null for fixed updates
+	private boolean _receiving_updates;
 	private final IBinder _binder = new LocationServiceBinder();
 
 	private void setupGoogleLocationServices() {
@@ -58,8 +60,26 @@ public class LocationService extends Service implements GoogleApiClient.Connecti
 
 	private void createLocationRequest() {
 		_location_request = new LocationRequest();
-		_location_request.setInterval(10000);
-		_location_request.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+		setLocationRequest(LocationPolicy.DEFAULT_INTERVAL, LocationPolicy.DEFAULT_PRIORITY);
+	}
+
+	private void setLocationRequest(long interval, int priority) {
+		_location_request.setInterval(interval);
+		_location_request.setFastestInterval(Math.min(interval, LocationPolicy.MIN_INTERVAL));
+		_location_request.setPriority(priority);
+	}
+
+	/**
+	 * Sets the policy that decides how often, and how accurately, to update the location after each fix.
+	 * @param policy the policy, or null to go back to the default updates
+	 */
+	public void setPolicy(LocationPolicy policy) {
+		_policy = policy;
+		if(policy == null) {
+			setLocationRequest(LocationPolicy.DEFAULT_INTERVAL, LocationPolicy.DEFAULT_PRIORITY);
+			if(_receiving_updates)
+				startLocationUpdates();
+		}
 	}
 
 	public Location getCurrentLocation() {
@@ -75,6 +95,7 @@ public class LocationService extends Service implements GoogleApiClient.Connecti
 			return;
 		}
 		LocationServices.FusedLocationApi.removeLocationUpdates(_google_api_client, this);
+		_receiving_updates = false;
 		Log.d(TAG, "stopping location updates");
 	}
 	public void startLocationUpdates() {
@@ -82,8 +103,10 @@ public class LocationService extends Service implements GoogleApiClient.Connecti
 			Log.w(TAG, "Google API client is not yet connected; cannot request updates yet");
 			return;
 		}
+		/// replaces our earlier request, if any
 		LocationServices.FusedLocationApi.requestLocationUpdates(_google_api_client, _location_request, this);
-		Log.d(TAG, "starting location updates");
+		_receiving_updates = true;
+		Log.d(TAG, "starting location updates every " + _location_request.getInterval() + " ms at priority " + _location_request.getPriority());
 	}
 
 	@Override
@@ -122,13 +145,37 @@ public class LocationService extends Service implements GoogleApiClient.Connecti
 
 	public static class ServiceConnection implements android.content.ServiceConnection {
 		private LocationService _service;
+		private final LocationPolicy _policy;                  /// given to the service once connected, if not null
+		private final LocationUpdateListener[] _listeners;     /// added to the service once connected
+
+		public ServiceConnection() {
+			this(null);
+		}
+		public ServiceConnection(LocationPolicy policy, LocationUpdateListener... listeners) {
+			_policy = policy;
+			_listeners = listeners;
+		}
 
 		public void onServiceConnected(ComponentName className, IBinder service) {
 			// This is called when the connection with the service has been established, giving us the service object we can use to interact with the service.  Because we have bound to a explicit service that we know is running in our own process, we can cast its IBinder to a concrete class and directly access it.
 			_service = ((LocationService.LocationServiceBinder)service).getService();
+			for(LocationUpdateListener l : _listeners)
+				_service.addListener(l);
+			if(_policy != null)
+				_service.setPolicy(_policy);
 			_service.startLocationUpdates();
 		}
 
+		/// Removes our listeners and policy from the service. Call this before unbinding, since the service may outlive the connection.
+		public void detach() {
+			if(_service == null)
+				return;
+			for(LocationUpdateListener l : _listeners)
+				_service.removeListener(l);
+			if(_policy != null)
+				_service.setPolicy(null);
+		}
+
 		public void onServiceDisconnected(ComponentName className) {
 			// This is called when the connection with the service has been unexpectedly disconnected -- that is, its process crashed.
 			// Because it is running in our same process, we should never see this happen.
@@ -159,9 +206,15 @@ public class LocationService extends Service implements GoogleApiClient.Connecti
 		_current_location = location;
 		for(LocationUpdateListener l : _listeners)
 			l.onLocationUpdated(location);
+
+		if(_policy != null && _policy.update(location)) {
+			setLocationRequest(_policy.interval(), _policy.priority());
+			if(_receiving_updates)
+				startLocationUpdates();
+		}
 	}
 
-	/// add/remove listeners which will be notified when the location changes. We're not using these right now (our activities are only interested in querying the location, not getting updates), but they could be useful in the future
+	/// add/remove listeners which will be notified when the location changes, e.g. to prefetch the descriptors of nearby items, or to trigger work as the visitor nears items (see ProximityTrigger). Listeners are called on the main thread.
 	public void addListener(LocationUpdateListener l) {
 		_listeners.add(l);
 	}
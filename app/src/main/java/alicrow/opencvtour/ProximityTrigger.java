@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alicrow.opencvtour;
+
+import android.location.Location;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Geofence-style triggers around the tour's items: tells a listener when the visitor comes near items, so work for
+ * them can start before the visitor gets there.
+ *
+ * A trigger fires once the visitor is within ENTER_FACTOR times the tour's item range of an item (plus the fix's
+ * accuracy), and is re-armed once they're beyond EXIT_FACTOR times it, so a fix jittering around the edge doesn't
+ * fire it again and again. Items are found with the tour's spatial index, so the cost of each fix doesn't grow with
+ * the size of the tour. Items with no location never trigger.
+ *
+ * Triggers are checked on the location updates LocationService already gets, rather than registered with the
+ * platform's geofencing, which limits the number of fences and needs its own intents and receivers.
+ * Register it with LocationService.addListener(). Used on the UI thread only.
+ */
+public class ProximityTrigger implements LocationService.LocationUpdateListener {
+	/// Radius of a trigger, in multiples of the tour's item range: a bit more than the range recognition considers,
+	/// so the trigger fires before the visitor can photograph the item
+	private static final double ENTER_FACTOR = 1.5;
+	private static final double EXIT_FACTOR = 2;
+
+	/**
+	 * Interface for classes that want to know when the visitor comes near items. Called on the UI thread.
+	 */
+	public interface Listener {
+		void onItemsEntered(List<Long> item_ids, Location location);
+	}
+
+	private final Tour _tour;
+	private final Listener _listener;
+	private Set<Long> _inside = new HashSet<>();    /// items whose triggers fired and haven't been re-armed
+
+	public ProximityTrigger(Tour tour, Listener listener) {
+		_tour = tour;
+		_listener = listener;
+	}
+
+	@Override
+	public void onLocationUpdated(Location location) {
+		double range = _tour.getItemRange();
+		if(range <= 0)
+			return;
+
+		List<Long> near = _tour.getItemIdsNear(location, ENTER_FACTOR * range + location.getAccuracy(), false);
+		Set<Long> inside = new HashSet<>(_tour.getItemIdsNear(location, EXIT_FACTOR * range + location.getAccuracy(), false));
+		inside.retainAll(_inside);
+
+		List<Long> entered = new ArrayList<>();
+		for(Long item_id : near) {
+			if(inside.add(item_id))
+				entered.add(item_id);
+		}
+		_inside = inside;
+
+		if(!entered.isEmpty())
+			_listener.onItemsEntered(entered, location);
+	}
+}
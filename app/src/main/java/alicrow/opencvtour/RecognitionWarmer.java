@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package alicrow.opencvtour;
+
+import android.location.Location;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+import com.thanh.photodetector.ImageDetector;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gets recognition ready for the items the visitor is coming near, so the first photo taken there is recognized as
+ * fast as any later one.
+ *
+ * When a ProximityTrigger fires, the detector is warmed up on a background thread for every item recognition will
+ * consider from there (see ImageDetector.warmUp()), and the audio files of the items that were entered are opened,
+ * so their metadata is read and the files are cached by the time they're played.
+ *
+ * Call stop() once the trigger is removed.
+ */
+public class RecognitionWarmer implements ProximityTrigger.Listener {
+	private static final String TAG = "RecognitionWarmer";
+
+	private final Tour _tour;
+	private final ImageDetector _detector;
+	private final ExecutorService _executor;
+
+	public RecognitionWarmer(Tour tour) {
+		_tour = tour;
+		_detector = tour.getDetector();
+		_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG);
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Stops warming up. Work already started is finished in the background.
+	 */
+	public void stop() {
+		_executor.shutdown();
+	}
+
+	@Override
+	public void onItemsEntered(List<Long> item_ids, Location location) {
+		if(_executor.isShutdown())
+			return;
+
+		/// Tour isn't thread-safe, so gather what the background thread needs here
+		/// the entered items may not be within recognition range yet
+		final Set<Long> candidate_item_ids = new LinkedHashSet<>(_tour.getItemIdsNear(location, _tour.getItemRange()));
+		candidate_item_ids.addAll(item_ids);
+		final List<String> audio_filepaths = new ArrayList<>();
+		for(Long item_id : item_ids) {
+			TourItem item = _tour.getTourItem(item_id);
+			if(item != null && item.getAudioFilepath() != null && !item.getAudioFilepath().equals(""))
+				audio_filepaths.add(item.getAudioFilepath());
+		}
+
+		Log.i(TAG, "came near " + item_ids.size() + " items; warming up");
+		_executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				_detector.warmUp(candidate_item_ids);
+				for(String filepath : audio_filepaths)
+					readAudioMetadata(filepath);
+			}
+		});
+	}
+
+	private static void readAudioMetadata(String filepath) {
+		if(!new File(filepath).exists())
+			return;
+		MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+		try {
+			retriever.setDataSource(filepath);
+			Log.d(TAG, "'" + filepath + "' lasts " + retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION) + " ms");
+		} catch (RuntimeException e) {
+			Log.e(TAG, "could not read the metadata of '" + filepath + "': " + e.toString());
+		} finally {
+			retriever.release();
+		}
+	}
+}
@@ -20,6 +20,7 @@
 package alicrow.opencvtour;
 
 import android.content.Context;
+import android.location.Location;
 import android.os.Environment;
 import android.util.Log;
 
@@ -30,10 +31,14 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import com.thanh.photodetector.DescriptorPack;
 import com.thanh.photodetector.ImageDetector;
+import com.thanh.photodetector.SpatialIndex;
 
 /**
  * Created by daniel on 5/26/15.
@@ -42,6 +47,7 @@ import com.thanh.photodetector.ImageDetector;
  */
 public class Tour {
 	private static final String TAG = "Tour";
+	private static final String HEADER_FILENAME = "header.yaml";  /// small summary of the tour, so the tour list doesn't need to load the whole tour
 	private static Tour _currentTour;
 	private static ArrayList<Tour> _tours;
 	private static File _tours_directory;  /// directory to save our Tours in
@@ -55,6 +61,14 @@ public class Tour {
 	private File _directory;    /// directory we save this tour in
 	private boolean _editable = true;
 	private double _item_range; /// if GPS is enabled, we'll only check items within _item_range meters of the current location.
+	private File _file;         /// the tour's "tour.yaml" file, if it hasn't been fully loaded yet
+	private boolean _loaded;    /// whether the tour items (and image descriptors) have been loaded. Until then, only the header is available.
+	private int _item_count;
+	private String _thumbnail_filepath = "";
+
+	private SpatialIndex _item_index;           /// index of the items that have a location. null until needed, or after items change.
+	private long[] _indexed_item_ids;           /// id of each item in _item_index
+	private List<Long> _unlocated_item_ids;     /// items with no location, which are never too far away
 
 	public static Tour getCurrentTour() {
 		if(_currentTour == null)
@@ -62,6 +76,9 @@ public class Tour {
 		return _currentTour;
 	}
 	public static void setSelectedTour(Tour tour) {
+		/// Selecting a tour (to follow or edit it) is when we actually need its items and image descriptors.
+		if(tour != null)
+			tour.load();
 		_currentTour = tour;
 	}
 
@@ -160,11 +177,88 @@ public class Tour {
 	public Tour() {
 		_tour_items = new ArrayList<>();
 		_name = "Unnamed tour";
+		_loaded = true;
 	}
+
+	/**
+	 * Creates a Tour from its "tour.yaml" file. Only the tour's header (name, item count and thumbnail) is read here;
+	 * the rest of the tour is loaded by load() when the tour is selected.
+	 * @param file the "tour.yaml" file in the tour's folder
+	 */
 	public Tour(File file) {
 		_directory = file.getParentFile();
 		_tour_items = new ArrayList<>();
-		loadFromFile(file);
+		_file = file;
+		_loaded = false;
+		loadHeader(file);
+	}
+
+	/**
+	 * Fully loads the tour (its items and image descriptors), if it hasn't been loaded yet.
+	 */
+	public void load() {
+		if(_loaded)
+			return;
+		_loaded = true;
+		loadFromFile(_file);
+		_file = null;
+	}
+
+	/**
+	 * Reads the tour's header. Falls back to reading the header fields out of "tour.yaml" (without creating any
+	 * TourItems) for tours saved before we wrote header files.
+	 * @param file the "tour.yaml" file in the tour's folder
+	 */
+	private void loadHeader(File file) {
+		try {
+			Yaml yaml = new Yaml();
+			File header_file = new File(file.getParentFile(), HEADER_FILENAME);
+			boolean have_header = header_file.exists();
+			Map<String, Object> data;
+			FileReader reader = new FileReader(have_header ? header_file : file);
+			try {
+				data = (Map<String, Object>) yaml.load(reader);
+			} finally {
+				reader.close();
+			}
+
+			setName((String) data.get("name"));
+			if(have_header) {
+				_item_count = (Integer) data.get("item_count");
+				if(data.get("thumbnail") != null)
+					_thumbnail_filepath = new File(getDirectory(), (String) data.get("thumbnail")).getPath();
+			} else {
+				ArrayList<Map<String, Object>> items = (ArrayList<Map<String, Object>>) data.get("items");
+				_item_count = items.size();
+				if(!items.isEmpty() && items.get(0).get("main_image") != null)
+					_thumbnail_filepath = new File(getDirectory(), (String) items.get(0).get("main_image")).getPath();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+		}
+	}
+
+	/**
+	 * Saves the tour's header, which is all the tour list needs to display the tour.
+	 */
+	private void saveHeader(File dir) {
+		Map<String, Object> data = new HashMap<>();
+		data.put("name", _name);
+		data.put("item_count", _tour_items.size());
+		if(!_tour_items.isEmpty() && _tour_items.get(0).hasMainImage())
+			data.put("thumbnail", new File(_tour_items.get(0).getMainImageFilepath()).getName());
+
+		Yaml yaml = new Yaml();
+		try {
+			FileWriter writer = new FileWriter(new File(dir, HEADER_FILENAME));
+			try {
+				yaml.dump(data, writer);
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+		}
 	}
 
 	/// Return a File object representing the directory this Tour is stored in.
@@ -215,12 +309,25 @@ public class Tour {
 				Log.e(TAG, e.toString());
 			}
 		}
+		invalidateItemIndex();
+
+		/// Add every item's images to the detector in one background batch, so descriptor extraction runs in parallel and doesn't block the UI.
+		ArrayList<String> image_filepaths = new ArrayList<>();
+		ArrayList<Long> item_ids = new ArrayList<>();
+		for(TourItem item : _tour_items) {
+			for(String filepath : item.getImageFilepaths()) {
+				image_filepaths.add(filepath);
+				item_ids.add(item.getId());
+			}
+		}
+		_detector.addToLibraryAsync(image_filepaths, item_ids);
 	}
 
 	/**
 	 * Saves the Tour to disk.
 	 */
 	public void saveToFile() {
+		load();
 		Map<String, Object> data = saveToMap();
 		Yaml yaml = new Yaml();
 		try {
@@ -229,20 +336,43 @@ public class Tour {
 				dir.mkdir();
 			File file = new File(dir, "tour.yaml");
 			FileWriter writer = new FileWriter(file);
-			yaml.dump(data, writer);
-			writer.close();
+			try {
+				yaml.dump(data, writer);
+			} finally {
+				writer.close();
+			}
 			Log.i(TAG, "saved '" + file + "'");
+			saveHeader(dir);
 		} catch (IOException e) {
 			Log.e(TAG, e.toString());
 		}
 		_detector.saveImageDescriptors();
+
+		ArrayList<Long> item_ids = new ArrayList<>();
+		for(TourItem item : _tour_items)
+			item_ids.add(item.getId());
+		_detector.saveDescriptorPack(new File(getDirectory(), DescriptorPack.FILENAME), item_ids);
+		_detector.saveBagOfWords(getDirectory());
 	}
 	/// Loads the tour from the given file. The file should be the "tour.yaml" file in the tour's folder.
 	public void loadFromFile(File file) {
 		try {
 			Yaml yaml = new Yaml();
 
-			Map<String, Object> data = (Map<String, Object>) yaml.load(new FileReader(file));
+			Map<String, Object> data;
+			FileReader reader = new FileReader(file);
+			try {
+				data = (Map<String, Object>) yaml.load(reader);
+			} finally {
+				reader.close();
+			}
+
+			/// Load all the image descriptors at once, rather than one file per image as the TourItems are created.
+			File pack_file = new File(file.getParentFile(), DescriptorPack.FILENAME);
+			if(pack_file.exists())
+				_detector.loadDescriptorPack(pack_file);
+			_detector.loadBagOfWords(file.getParentFile());
+
 			loadFromMap(data);
 			Log.i(TAG, "loaded '" + file + "'");
 		} catch (IOException e) {
@@ -251,6 +381,7 @@ public class Tour {
 	}
 
 	public ImageDetector getDetector() {
+		load();
 		return _detector;
 	}
 
@@ -259,23 +390,114 @@ public class Tour {
 	}
 
 	public ArrayList<TourItem> getTourItems() {
+		load();
 		return _tour_items;
 	}
+
+	/// Number of items in the tour. Available without fully loading the tour.
+	public int getItemCount() {
+		if(_loaded)
+			return _tour_items.size();
+		return _item_count;
+	}
+
+	/// Filepath of the image representing the tour (the main image of its first item). Available without fully loading the tour.
+	public String getThumbnailFilepath() {
+		if(_loaded) {
+			if(!_tour_items.isEmpty())
+				return _tour_items.get(0).getMainImageFilepath();
+			return "";
+		}
+		return _thumbnail_filepath;
+	}
 	public TourItem getTourItem(long id) {
-		for(TourItem item : _tour_items) {
+		for(TourItem item : getTourItems()) {
 			if(item.getId() == id)
 				return item;
 		}
 		return null;
 	}
 	public TourItem addNewTourItem() {
+		load();
 		TourItem item = new TourItem(this);
 		_tour_items.add(item);
+		invalidateItemIndex();
 		return item;
 	}
 
+	/**
+	 * Finds the tour items within range of a location, using a spatial index rather than measuring the distance to
+	 * every item. Items with no location are always included.
+	 * @param location the location
+	 * @param range maximum distance, in meters, an item can be from the location
+	 * @return the ids of the items
+	 */
+	public List<Long> getItemIdsNear(Location location, double range) {
+		return getItemIdsNear(location, range, true);
+	}
+
+	/**
+	 * Finds the tour items within range of a location, using a spatial index rather than measuring the distance to
+	 * every item.
+	 * @param location the location
+	 * @param range maximum distance, in meters, an item can be from the location
+	 * @param include_unlocated whether to include the items with no location
+	 * @return the ids of the items
+	 */
+	public List<Long> getItemIdsNear(Location location, double range, boolean include_unlocated) {
+		if(_item_index == null)
+			buildItemIndex();
+		BitSet near = new BitSet(_item_index.size());
+		_item_index.within(location.getLatitude(), location.getLongitude(), range, near);
+		List<Long> item_ids = include_unlocated ? new ArrayList<>(_unlocated_item_ids) : new ArrayList<Long>();
+		for(int i = near.nextSetBit(0); i >= 0; i = near.nextSetBit(i + 1))
+			item_ids.add(_indexed_item_ids[i]);
+		return item_ids;
+	}
+
+	/**
+	 * @param location the location
+	 * @return the distance, in meters, from a location to the nearest item with a location, or
+	 * Double.POSITIVE_INFINITY if no item has one
+	 */
+	public double getNearestItemDistance(Location location) {
+		if(_item_index == null)
+			buildItemIndex();
+		return _item_index.nearest(location.getLatitude(), location.getLongitude());
+	}
+
+	/// Marks the spatial index as stale, so it's rebuilt when next needed. Call this whenever an item is added, deleted or moved.
+	public void invalidateItemIndex() {
+		_item_index = null;
+	}
+
+	private void buildItemIndex() {
+		int n = _tour_items.size();
+		int[] ids = new int[n];
+		double[] latitudes = new double[n];
+		double[] longitudes = new double[n];
+		_indexed_item_ids = new long[n];
+		_unlocated_item_ids = new ArrayList<>();
+		int located = 0;
+		for(TourItem item : _tour_items) {
+			Location location = item.getLocation();
+			if(location == null) {
+				_unlocated_item_ids.add(item.getId());
+				continue;
+			}
+			ids[located] = located;
+			latitudes[located] = location.getLatitude();
+			longitudes[located] = location.getLongitude();
+			_indexed_item_ids[located] = item.getId();
+			++located;
+		}
+		_item_index = new SpatialIndex(ids, latitudes, longitudes, located);
+	}
+
 	public void setGpsEnabled(boolean enabled) {
 		_gps_enabled = enabled;
+		/// Only queries filtered by location can afford to leave far-away items' descriptors on disk
+		_detector.setBudgeted(enabled);
 	}
 	public boolean getGpsEnabled() {
 		return _gps_enabled;
@@ -110,8 +110,9 @@ public class TourItem {
 			_main_image_filepath = "";
 
 		if(data.containsKey("images") && data.get("images") != null) {
+			/// The Tour adds all its images to the detector at once after loading, so we don't do it here.
 			for(String image : (ArrayList<String>) data.get("images")) {
-				addImageFilepath((new File(_tour.getDirectory(), image)).getPath());
+				addImage((new File(_tour.getDirectory(), image)).getPath());
 			}
 		}
 
@@ -169,12 +170,16 @@ public class TourItem {
 		return _image_filepaths;
 	}
 	public void addImageFilepath(String filepath) {
+		addImage(filepath);
+		_tour.getDetector().addToLibraryAsync(filepath, _unique_id);
+	}
+	/// Adds an image to this item without adding it to the detector
+	private void addImage(String filepath) {
 		_image_filepaths.add(filepath);
 		if(!hasMainImage()) {
 			/// make this the main image if we don't have a main image set yet
 			setMainImage(filepath);
 		}
-		_tour.getDetector().addToLibrary(filepath, _unique_id);
 	}
 	public void removeImage(String filepath) {
 		_image_filepaths.remove(filepath);
@@ -185,7 +190,12 @@ public class TourItem {
 			else
 				_main_image_filepath = _image_filepaths.get(0);
 		}
-		/// FIXME: Should remove the image from the ImageDetector.
+		_tour.getDetector().removeFromLibrary(filepath);
+	}
+	/// Removes all of this item's images from the detector, for when the item is deleted
+	public void removeImagesFromDetector() {
+		for(String filepath : _image_filepaths)
+			_tour.getDetector().removeFromLibrary(filepath);
 	}
 
 	public Location getLocation() {
@@ -193,9 +203,11 @@ public class TourItem {
 	}
 	public void setLocation(Location location) {
 		_location = location;
+		_tour.invalidateItemIndex();
 	}
 	public void setLocation(Map<String, Object> gps_data) {
 		_location = new Location("saved");
+		_tour.invalidateItemIndex();
 		if(gps_data.containsKey("accuracy"))
 			_location.setAccuracy(((Double) gps_data.get("accuracy")).floatValue());
 		if(gps_data.containsKey("altitude"))
@@ -88,7 +88,9 @@ public class TourItemListFragment extends Fragment implements View.OnClickListen
 				switch(view.getId()) {
 					case R.id.delete_tour_item:
 						if (position != RecyclerView.NO_POSITION) {
-							_adapter.getList().remove(position);
+							TourItem removed = _adapter.getList().remove(position);
+							removed.removeImagesFromDetector();
+							_tour.invalidateItemIndex();
 							_adapter.notifyDataSetChanged();
 						}
 						break;
@@ -38,6 +38,7 @@ import org.opencv.android.BaseLoaderCallback;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 
+import java.io.File;
 import java.util.List;
 
 
@@ -119,15 +120,21 @@ public class TourListFragment extends Fragment implements View.OnClickListener {
 
 		public class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
 			public final TextView _text_view;
+			public final TextView _item_count;
+			public final ImageView _thumbnail;
 			public final ImageView _edit_button;
 
 			public ViewHolder(RelativeLayout v) {
 				super(v);
 
 				_text_view = (TextView) v.findViewById(R.id.tour_name);
+				_item_count = (TextView) v.findViewById(R.id.tour_item_count);
+				_thumbnail = (ImageView) v.findViewById(R.id.tour_thumbnail);
 				_edit_button = (ImageView) v.findViewById(R.id.edit_tour);
 
 				_text_view.setOnClickListener(this);
+				_item_count.setOnClickListener(this);
+				_thumbnail.setOnClickListener(this);
 				_edit_button.setOnClickListener(this);
 			}
 
@@ -140,6 +147,8 @@ public class TourListFragment extends Fragment implements View.OnClickListener {
 						startActivity(new Intent(getActivity(), EditTourActivity.class));
 						break;
 					case R.id.tour_name:
+					case R.id.tour_item_count:
+					case R.id.tour_thumbnail:
 						startActivity(new Intent(getActivity(), FollowTourActivity.class));
 						break;
 				}
@@ -166,7 +175,18 @@ public class TourListFragment extends Fragment implements View.OnClickListener {
 		public void onBindViewHolder(ViewHolder holder, int position) {
 			// - get element from your dataset at this position
 			// - replace the contents of the view with that element
-			holder._text_view.setText(_tours.get(position).getName());
+			Tour tour = _tours.get(position);
+			holder._text_view.setText(tour.getName());
+
+			/// Both come from the tour's header, so the tour isn't loaded just to list it
+			int item_count = tour.getItemCount();
+			holder._item_count.setText(getResources().getQuantityString(R.plurals.tour_item_count, item_count, item_count));
+			String thumbnail_filepath = tour.getThumbnailFilepath();
+			if(thumbnail_filepath != null && !thumbnail_filepath.equals("") && new File(thumbnail_filepath).exists())
+				Utilities.loadBitmap(holder._thumbnail, thumbnail_filepath, Utilities.dp_to_px(40), Utilities.dp_to_px(40), getActivity());
+			else
+				holder._thumbnail.setImageResource(R.drawable.default_thumbnail);
+
 			if(!_tours.get(position).getEditable()) {
 				/// Disable the edit button
 				holder._edit_button.setVisibility(View.GONE);
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Keeps the descriptors held in memory by every detector in the process (one per tour) under a single byte budget.
+ *
+ * Each training image's descriptors are a block. Owners (detectors) add a block when its descriptors are in memory,
+ * remove it when they're freed, and touch it whenever a query uses it. Once the blocks add up to more than the budget,
+ * the least recently used blocks, of any owner, are evicted on a background thread until they fit in
+ * LOW_WATERMARK of the budget; the owner is expected to read them back from disk when they're next needed (a miss).
+ *
+ * Recency is a stamp per block, so touching a block costs a single write, and the blocks are only sorted by it when
+ * something must be evicted. Thread-safe. Owners' methods are never called with the cache's lock held, so an owner
+ * may call into the cache while holding its own lock.
+ * Has no Android or OpenCV dependency.
+ */
+public class DescriptorCache {
+	// Budget of the process-wide cache, in bytes, until it's changed with setBudget()
+	public static final long DEFAULT_BUDGET = 64L << 20;
+	// Fraction of the budget evictions bring the cache down to, so they don't happen on every add
+	private static final double LOW_WATERMARK = 0.9;
+
+	private static DescriptorCache instance;
+
+	/*
+	 * Something whose blocks the cache can evict
+	 */
+	public interface Owner {
+		/*
+		 * Frees the given blocks, if they're still in use, and removes them from the cache.
+		 * Called on the cache's background thread.
+		 */
+		void evict(List<Block> blocks);
+	}
+
+	/*
+	 * A block of memory of some owner, e.g. the descriptors of one training image
+	 */
+	public static class Block {
+		private final Owner owner;
+		private final int slot;
+		private final long bytes;
+		private volatile long last_used;
+		private int index = -1;    // position in blocks, or -1 once removed
+
+		private Block(Owner owner, int slot, long bytes) {
+			this.owner = owner;
+			this.slot = slot;
+			this.bytes = bytes;
+		}
+
+		/*
+		 * @return the owner's number for the block, e.g. the slot of a training image
+		 */
+		public int slot() {
+			return slot;
+		}
+		public long bytes() {
+			return bytes;
+		}
+	}
+
+	private long budget;
+	private final List<Block> blocks = new ArrayList<>();
+	private long size;
+	private volatile long clock;
+	private boolean evicting;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private final Executor executor;
+	private final Runnable evict = new Runnable() {
+		@Override
+		public void run() {
+			evictLeastRecentlyUsed();
+		}
+	};
+
+	private static final Comparator<Block> OLDEST_FIRST = new Comparator<Block>() {
+		@Override
+		public int compare(Block a, Block b) {
+			return a.last_used < b.last_used ? -1 : (a.last_used == b.last_used ? 0 : 1);
+		}
+	};
+
+	/*
+	 * @param budget most bytes the blocks may add up to before some are evicted
+	 * @param executor runs evictions
+	 */
+	public DescriptorCache(long budget, Executor executor) {
+		this.budget = budget;
+		this.executor = executor;
+	}
+
+	/*
+	 * @return the cache shared by every detector in the process
+	 */
+	public static synchronized DescriptorCache getInstance() {
+		if(instance == null) {
+			instance = new DescriptorCache(DEFAULT_BUDGET, Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "DescriptorCache");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			}));
+		}
+		return instance;
+	}
+
+	/*
+	 * Changes the budget, evicting blocks if they no longer fit
+	 * @param budget most bytes the blocks may add up to
+	 */
+	public synchronized void setBudget(long budget) {
+		this.budget = budget;
+		scheduleEviction();
+	}
+	public synchronized long budget() {
+		return budget;
+	}
+
+	/*
+	 * Adds a block whose memory is in use, as most recently used
+	 * @param owner the block's owner, which evicts it
+	 * @param slot the owner's number for the block
+	 * @param bytes the memory the block holds
+	 * @return the block, to be touched and removed later
+	 */
+	public synchronized Block add(Owner owner, int slot, long bytes) {
+		Block block = new Block(owner, slot, bytes);
+		block.last_used = ++clock;
+		block.index = blocks.size();
+		blocks.add(block);
+		size += bytes;
+		scheduleEviction();
+		return block;
+	}
+
+	/*
+	 * Removes a block whose memory was freed. Removing a block twice does nothing.
+	 */
+	public synchronized void remove(Block block) {
+		if(block.index < 0)
+			return;
+		// move the last block into the hole
+		Block last = blocks.remove(blocks.size() - 1);
+		if(last != block) {
+			blocks.set(block.index, last);
+			last.index = block.index;
+		}
+		block.index = -1;
+		size -= block.bytes;
+	}
+
+	/*
+	 * @return a stamp for touch(). All blocks used by one query can share a stamp. Stamps taken at the same moment on
+	 * different threads may be equal, which only blurs the order of blocks used at that moment.
+	 */
+	public long tick() {
+		return ++clock;
+	}
+
+	/*
+	 * Marks a block as used
+	 * @param stamp from tick()
+	 */
+	public void touch(Block block, long stamp) {
+		block.last_used = stamp;
+	}
+
+	/*
+	 * Counts uses of blocks that were in memory (hits) and that had to be read back (misses)
+	 */
+	public synchronized void record(int hits, int misses) {
+		this.hits += hits;
+		this.misses += misses;
+	}
+
+	/*
+	 * @return the memory held by the blocks, in bytes
+	 */
+	public synchronized long size() {
+		return size;
+	}
+	public synchronized int blocks() {
+		return blocks.size();
+	}
+	public synchronized long hits() {
+		return hits;
+	}
+	public synchronized long misses() {
+		return misses;
+	}
+	public synchronized long evictions() {
+		return evictions;
+	}
+
+	/*
+	 * @return the fraction of uses of blocks that found them in memory, or 1 if no block was used yet
+	 */
+	public synchronized double hitRate() {
+		long uses = hits + misses;
+		return uses == 0 ? 1 : (double) hits / uses;
+	}
+
+	/*
+	 * Clears the hit, miss and eviction counts
+	 */
+	public synchronized void resetStats() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.US, "%d blocks, %d of %d KB, hit rate %.3f (%d hits, %d misses), %d evictions",
+				blocks.size(), size >> 10, budget >> 10, hitRate(), hits, misses, evictions);
+	}
+
+	// Must be called while holding the cache's lock
+	private void scheduleEviction() {
+		if(evicting || size <= budget)
+			return;
+		evicting = true;
+		executor.execute(evict);
+	}
+
+	private void evictLeastRecentlyUsed() {
+		Map<Owner,List<Block>> victims = new HashMap<>();
+		synchronized(this) {
+			Block[] blocks = this.blocks.toArray(new Block[this.blocks.size()]);
+			Arrays.sort(blocks, OLDEST_FIRST);
+			long size = this.size;
+			long target = (long) (LOW_WATERMARK * budget);
+			for(int i = 0; i < blocks.length && size > target; ++i) {
+				List<Block> owned = victims.get(blocks[i].owner);
+				if(owned == null) {
+					owned = new ArrayList<>();
+					victims.put(blocks[i].owner, owned);
+				}
+				owned.add(blocks[i]);
+				size -= blocks[i].bytes;
+			}
+		}
+
+		// owners take their own locks, so they're called without ours
+		int evicted = 0;
+		try {
+			for(Map.Entry<Owner,List<Block>> entry : victims.entrySet()) {
+				entry.getKey().evict(entry.getValue());
+				for(Block block : entry.getValue()) {
+					if(block.index < 0)
+						++evicted;
+				}
+			}
+		} finally {
+			synchronized(this) {
+				evictions += evicted;
+				evicting = false;
+				// blocks an owner couldn't evict right now stay until the next add
+				if(evicted > 0)
+					scheduleEviction();
+			}
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/*
+ * Binary container for the descriptors of a single image.
+ *
+ * Layout (big-endian): magic, version, rows, columns, type, data length, CRC32 of the data, number of key points,
+ * followed by the raw descriptor bytes exactly as they are stored in the Mat, then the x and y coordinates of the key
+ * point of each descriptor (if they were saved). This replaces the old ".descriptors.yaml" files, which were slow to
+ * parse. Version 1 files have no key point count or coordinates, and can still be read.
+ *
+ * Deliberately has no OpenCV dependency, so it can be used (and benchmarked) on a plain JVM.
+ */
+public class DescriptorFile {
+	// Suffix appended to an image's path to get the path of its descriptor file
+	public static final String EXTENSION = ".descriptors";
+
+	// Suffix of the legacy YAML descriptor files, which are migrated the first time they're loaded
+	public static final String YAML_EXTENSION = ".descriptors.yaml";
+
+	private static final int MAGIC = 0x4F445343;    // "ODSC"
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 8 * 4;
+	private static final int V1_HEADER_SIZE = 7 * 4;
+
+	private final int rows;
+	private final int cols;
+	private final int type;
+	private final byte[] bytes;
+	private final float[] points;
+
+	public DescriptorFile(int rows, int cols, int type, byte[] bytes) {
+		this(rows, cols, type, bytes, null);
+	}
+
+	/*
+	 * @param points x and y coordinates of the key point of each descriptor, or null if they aren't known
+	 */
+	public DescriptorFile(int rows, int cols, int type, byte[] bytes, float[] points) {
+		if(points != null && points.length != 2 * rows)
+			throw new IllegalArgumentException("expected " + 2 * rows + " key point coordinates, got " + points.length);
+		this.rows = rows;
+		this.cols = cols;
+		this.type = type;
+		this.bytes = bytes;
+		this.points = points;
+	}
+
+	public int rows() {
+		return rows;
+	}
+	public int cols() {
+		return cols;
+	}
+	public int type() {
+		return type;
+	}
+	public byte[] bytes() {
+		return bytes;
+	}
+
+	/*
+	 * @return x and y coordinates of the key point of each descriptor, or null if the file doesn't have them
+	 */
+	public float[] points() {
+		return points;
+	}
+
+	/*
+	 * Reads a descriptor file by memory-mapping it.
+	 * @param file the file to read
+	 * @return the descriptors stored in the file
+	 * @throws IOException if the file can't be read, or is corrupt
+	 */
+	public static DescriptorFile read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() < V1_HEADER_SIZE)
+				throw new IOException("'" + file + "' is too short to be a descriptor file");
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer, file.toString());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Reads descriptors from a buffer positioned at the start of a descriptor file's header.
+	 * @param buffer buffer to read from
+	 * @param name name of the source, for error messages
+	 * @return the descriptors stored in the buffer
+	 * @throws IOException if the data is corrupt
+	 */
+	public static DescriptorFile read(ByteBuffer buffer, String name) throws IOException {
+		if(buffer.getInt() != MAGIC)
+			throw new IOException("'" + name + "' is not a descriptor file");
+		int version = buffer.getInt();
+		if(version != 1 && version != VERSION)
+			throw new IOException("'" + name + "' has unsupported version " + version);
+
+		int rows = buffer.getInt();
+		int cols = buffer.getInt();
+		int type = buffer.getInt();
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		int point_count = version >= 2 ? buffer.getInt() : 0;
+		if(length < 0 || point_count < 0 || length + 8L * point_count > buffer.remaining())
+			throw new IOException("'" + name + "' is truncated");
+		if(rows < 0 || cols < 0 || length != (long) rows * cols * elemSize(type) || (point_count != 0 && point_count != rows))
+			throw new IOException("'" + name + "' is corrupt");
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		float[] points = null;
+		if(point_count > 0) {
+			points = new float[2 * point_count];
+			buffer.asFloatBuffer().get(points);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		if(points != null)
+			crc.update(pointBytes(points));
+		if((int) crc.getValue() != checksum)
+			throw new IOException("checksum mismatch in '" + name + "'");
+
+		return new DescriptorFile(rows, cols, type, bytes, points);
+	}
+
+	/*
+	 * @return the size, in bytes, of an element of a matrix of the given OpenCV type
+	 */
+	static int elemSize(int type) {
+		int channels = (type >> 3) + 1;
+		switch(type & 7) {
+			case 0: case 1:         // CV_8U, CV_8S
+				return channels;
+			case 2: case 3: case 7: // CV_16U, CV_16S, CV_USRTYPE1
+				return 2 * channels;
+			case 4: case 5:         // CV_32S, CV_32F
+				return 4 * channels;
+			default:                // CV_64F
+				return 8 * channels;
+		}
+	}
+
+	/*
+	 * @return the big-endian bytes of an array of key point coordinates
+	 */
+	static byte[] pointBytes(float[] points) {
+		ByteBuffer buffer = ByteBuffer.allocate(points.length * 4);
+		buffer.asFloatBuffer().put(points);
+		return buffer.array();
+	}
+
+	/*
+	 * Writes descriptors to disk. The data is written to a temporary file first, forced to the storage device, and only
+	 * then renamed into place, so neither a reader nor a power loss ever leaves a partially-written file behind.
+	 * @param file the file to write
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = toBuffer();
+			// a single write may not write the whole buffer
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+		if(!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("could not rename '" + temp + "' to '" + file + "'");
+		}
+	}
+
+	/*
+	 * @return a buffer holding this file's header and data, ready to be written
+	 */
+	public ByteBuffer toBuffer() {
+		byte[] point_bytes = points != null ? pointBytes(points) : new byte[0];
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		crc.update(point_bytes);
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bytes.length + point_bytes.length);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(rows);
+		buffer.putInt(cols);
+		buffer.putInt(type);
+		buffer.putInt(bytes.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.putInt(points != null ? rows : 0);
+		buffer.put(bytes);
+		buffer.put(point_bytes);
+		buffer.flip();
+		return buffer;
+	}
+}
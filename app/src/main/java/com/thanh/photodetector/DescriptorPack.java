@@ -0,0 +1,338 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Packed descriptor index holding the descriptors of every image in a tour, so a tour can be loaded with a single
+ * file read instead of one per image.
+ *
+ * Layout (big-endian): a header (magic, version, entry count, columns, type, total rows, data length, CRC32 of the
+ * table of contents and data, number of key points), then a table of contents with one entry per image (filename,
+ * item index, first row, row count), then the descriptors of all images stored back to back as one contiguous matrix,
+ * then the x and y coordinates of the key point of every row. Images whose key points aren't known have NaN
+ * coordinates. Every entry's rows are checked to lie within the matrix when the pack is read.
+ * Version 1 packs have no key points, and in versions 1 and 2 the CRC doesn't cover the table of contents; both can
+ * still be read.
+ */
+public class DescriptorPack {
+	// Name of the index file in a tour's directory
+	public static final String FILENAME = "descriptors.idx";
+
+	private static final int MAGIC = 0x4F445350;    // "ODSP"
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 9 * 4;
+	private static final int V1_HEADER_SIZE = 8 * 4;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * Table of contents entry describing one image's block of descriptors.
+	 */
+	public static class Entry {
+		public final String name;   // filename of the image
+		public final int item;      // index of the image's tour item within the tour
+		public final int row;       // first row of the image's block
+		public final int rows;      // number of rows (descriptors) in the block
+
+		public Entry(String name, int item, int row, int rows) {
+			this.name = name;
+			this.item = item;
+			this.row = row;
+			this.rows = rows;
+		}
+	}
+
+	private final int cols;
+	private final int type;
+	private final List<Entry> entries = new ArrayList<>();
+	private int total_rows;
+	private byte[] bytes;
+	private ByteArrayOutputStream pending;
+	private float[] points;
+	private boolean has_points;
+
+	/*
+	 * Creates an empty pack that blocks can be added to
+	 * @param cols number of columns in each descriptor
+	 * @param type OpenCV type of the descriptor matrices
+	 */
+	public DescriptorPack(int cols, int type) {
+		this.cols = cols;
+		this.type = type;
+		pending = new ByteArrayOutputStream();
+		points = new float[0];
+	}
+
+	private DescriptorPack(int cols, int type, int total_rows, byte[] bytes, float[] points) {
+		this.cols = cols;
+		this.type = type;
+		this.total_rows = total_rows;
+		this.bytes = bytes;
+		this.points = points;
+		has_points = points != null;
+	}
+
+	public int cols() {
+		return cols;
+	}
+	public int type() {
+		return type;
+	}
+	public int totalRows() {
+		return total_rows;
+	}
+	public List<Entry> entries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/*
+	 * @return the descriptors of every image, as one contiguous matrix of totalRows() rows.
+	 */
+	public byte[] bytes() {
+		if(bytes == null)
+			bytes = pending.toByteArray();
+		return bytes;
+	}
+
+	/*
+	 * @param entry an entry of this pack
+	 * @return x and y coordinates of the key point of each of the entry's rows, or null if they aren't known
+	 */
+	public float[] points(Entry entry) {
+		if(!has_points || entry.rows == 0 || Float.isNaN(points[2 * entry.row]))
+			return null;
+		return Arrays.copyOfRange(points, 2 * entry.row, 2 * (entry.row + entry.rows));
+	}
+
+	/*
+	 * Appends an image's descriptors to the pack
+	 * @param name filename of the image
+	 * @param item index of the image's tour item
+	 * @param rows number of descriptors
+	 * @param bytes the raw descriptor data
+	 */
+	public void add(String name, int item, int rows, byte[] bytes) {
+		add(name, item, rows, bytes, null);
+	}
+
+	/*
+	 * Appends an image's descriptors and key point coordinates to the pack
+	 * @param name filename of the image
+	 * @param item index of the image's tour item
+	 * @param rows number of descriptors
+	 * @param bytes the raw descriptor data
+	 * @param points x and y coordinates of the key point of each descriptor, or null if they aren't known
+	 */
+	public void add(String name, int item, int rows, byte[] bytes, float[] points) {
+		if(pending == null)
+			throw new IllegalStateException("cannot add to a pack that was read from disk");
+		if(points != null && points.length != 2 * rows)
+			throw new IllegalArgumentException("expected " + 2 * rows + " key point coordinates, got " + points.length);
+		entries.add(new Entry(name, item, total_rows, rows));
+		pending.write(bytes, 0, bytes.length);
+
+		if(this.points.length < 2 * (total_rows + rows))
+			this.points = Arrays.copyOf(this.points, Math.max(2 * (total_rows + rows), this.points.length * 2));
+		if(points != null) {
+			System.arraycopy(points, 0, this.points, 2 * total_rows, points.length);
+			has_points = true;
+		} else {
+			Arrays.fill(this.points, 2 * total_rows, 2 * (total_rows + rows), Float.NaN);
+		}
+		total_rows += rows;
+		this.bytes = null;
+	}
+
+	/*
+	 * Reads a pack by memory-mapping it.
+	 * @param file the file to read
+	 * @return the pack stored in the file
+	 * @throws IOException if the file can't be read, or is corrupt
+	 */
+	public static DescriptorPack read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if(channel.size() < V1_HEADER_SIZE)
+				throw new IOException("'" + file + "' is too short to be a descriptor index");
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return read(buffer, file.toString());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Reads a pack from a buffer positioned at the start of its header.
+	 * @param buffer buffer to read from
+	 * @param name name of the source, for error messages
+	 * @return the pack stored in the buffer
+	 * @throws IOException if the data is corrupt
+	 */
+	public static DescriptorPack read(ByteBuffer buffer, String name) throws IOException {
+		try {
+			return readPack(buffer, name);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("'" + name + "' is truncated");
+		}
+	}
+
+	private static DescriptorPack readPack(ByteBuffer buffer, String name) throws IOException {
+		if(buffer.getInt() != MAGIC)
+			throw new IOException("'" + name + "' is not a descriptor index");
+		int version = buffer.getInt();
+		if(version != 1 && version != VERSION)
+			throw new IOException("'" + name + "' has unsupported version " + version);
+
+		int count = buffer.getInt();
+		int cols = buffer.getInt();
+		int type = buffer.getInt();
+		int total_rows = buffer.getInt();
+		int length = buffer.getInt();
+		int checksum = buffer.getInt();
+		int point_count = version >= 2 ? buffer.getInt() : 0;
+		if(count < 0 || cols < 0 || total_rows < 0 || length != (long) total_rows * cols * DescriptorFile.elemSize(type)
+				|| (point_count != 0 && point_count != total_rows))
+			throw new IOException("'" + name + "' is corrupt");
+
+		int toc_start = buffer.position();
+		List<Entry> entries = new ArrayList<>();
+		for(int i = 0; i < count; ++i) {
+			byte[] name_bytes = new byte[buffer.getShort() & 0xFFFF];
+			buffer.get(name_bytes);
+			Entry entry = new Entry(new String(name_bytes, UTF8), buffer.getInt(), buffer.getInt(), buffer.getInt());
+			if(entry.row < 0 || entry.rows < 0 || (long) entry.row + entry.rows > total_rows)
+				throw new IOException("'" + name + "' has a table of contents entry outside its descriptors");
+			entries.add(entry);
+		}
+		byte[] toc = new byte[buffer.position() - toc_start];
+		((ByteBuffer) buffer.duplicate().position(toc_start)).get(toc);
+		if(length + 8L * point_count > buffer.remaining())
+			throw new IOException("'" + name + "' is truncated");
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		float[] points = null;
+		if(point_count > 0) {
+			points = new float[2 * point_count];
+			buffer.asFloatBuffer().get(points);
+		}
+
+		CRC32 crc = new CRC32();
+		if(version >= 3)
+			crc.update(toc);
+		crc.update(bytes);
+		if(points != null)
+			crc.update(DescriptorFile.pointBytes(points));
+		if((int) crc.getValue() != checksum)
+			throw new IOException("checksum mismatch in '" + name + "'");
+
+		DescriptorPack pack = new DescriptorPack(cols, type, total_rows, bytes, points);
+		pack.entries.addAll(entries);
+		return pack;
+	}
+
+	/*
+	 * Writes the pack to disk. The data is written to a temporary file first, forced to the storage device, and then
+	 * renamed into place, so the previous version (which may still be mapped) is never modified in place, and a power
+	 * loss never leaves a partially-written index behind.
+	 * @param file the file to write
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(File file) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel channel = raf.getChannel();
+			ByteBuffer buffer = toBuffer();
+			// a single write may not write the whole buffer
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+		if(!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("could not rename '" + temp + "' to '" + file + "'");
+		}
+	}
+
+	/*
+	 * @return a buffer holding this pack's header, table of contents and data, ready to be written
+	 */
+	public ByteBuffer toBuffer() {
+		byte[] bytes = bytes();
+		byte[] point_bytes = has_points ? DescriptorFile.pointBytes(Arrays.copyOf(points, 2 * total_rows)) : new byte[0];
+
+		List<byte[]> names = new ArrayList<>(entries.size());
+		int toc_size = 0;
+		for(Entry entry : entries) {
+			byte[] name = entry.name.getBytes(UTF8);
+			names.add(name);
+			toc_size += 2 + name.length + 3 * 4;
+		}
+		ByteBuffer toc = ByteBuffer.allocate(toc_size);
+		for(int i = 0; i < entries.size(); ++i) {
+			Entry entry = entries.get(i);
+			toc.putShort((short) names.get(i).length);
+			toc.put(names.get(i));
+			toc.putInt(entry.item);
+			toc.putInt(entry.row);
+			toc.putInt(entry.rows);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(toc.array());
+		crc.update(bytes);
+		crc.update(point_bytes);
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + toc_size + bytes.length + point_bytes.length);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(entries.size());
+		buffer.putInt(cols);
+		buffer.putInt(type);
+		buffer.putInt(total_rows);
+		buffer.putInt(bytes.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.putInt(has_points ? total_rows : 0);
+		buffer.put(toc.array());
+		buffer.put(bytes);
+		buffer.put(point_bytes);
+		buffer.flip();
+		return buffer;
+	}
+}
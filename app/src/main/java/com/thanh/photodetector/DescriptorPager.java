@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/*
+ * Keeps track of which of a detector's training images have their descriptors in memory (resident) and which were
+ * evicted to their descriptor files, and of the cache block of each resident image.
+ *
+ * The pager reads and writes no files: the detector tells it when an image was added, removed, evicted or read back,
+ * and asks it which evicted images a query needs read back first.
+ *
+ * A budgeted pager puts a block in the DescriptorCache for every resident image, so the cache may evict it. An
+ * unbudgeted one (the default) puts none there: its images are never evicted and count against no budget. Only a
+ * detector whose queries are filtered, e.g. by location, should be budgeted, since a query over the whole library
+ * can only match the images in memory.
+ *
+ * Not thread-safe: the detector only uses it while holding its own lock.
+ * Has no Android or OpenCV dependency.
+ */
+public class DescriptorPager {
+	private final DescriptorCache cache;
+	private final DescriptorCache.Owner owner;
+	private boolean budgeted;
+
+	// Slots of the resident and the evicted images; removed slots are in neither
+	private final BitSet resident = new BitSet();
+	private final BitSet evicted = new BitSet();
+
+	// Memory held by each image's descriptors when resident, and by all resident descriptors
+	private long[] slot_bytes = new long[0];
+	private long resident_bytes;
+
+	// Cache block of each resident image, or null if the pager is unbudgeted
+	private DescriptorCache.Block[] blocks = new DescriptorCache.Block[0];
+
+	/*
+	 * @param cache the cache that keeps the descriptors' memory in budget, once the pager is budgeted
+	 * @param owner evicts the images of blocks the cache chooses
+	 */
+	public DescriptorPager(DescriptorCache cache, DescriptorCache.Owner owner) {
+		this.cache = cache;
+		this.owner = owner;
+	}
+
+	/*
+	 * Sets whether the resident images count against the cache's budget, adding or removing their blocks.
+	 * @return the evicted images, which should be read back now that nothing will evict them; empty once budgeted
+	 */
+	public BitSet setBudgeted(boolean budgeted) {
+		if(budgeted != this.budgeted) {
+			this.budgeted = budgeted;
+			for(int slot = resident.nextSetBit(0); slot >= 0; slot = resident.nextSetBit(slot + 1)) {
+				if(budgeted)
+					blocks[slot] = cache.add(owner, slot, slot_bytes[slot]);
+				else
+					removeBlock(slot);
+			}
+		}
+		return budgeted ? new BitSet() : evictedSlots();
+	}
+	public boolean isBudgeted() {
+		return budgeted;
+	}
+
+	/*
+	 * An image was added to the library, with its descriptors in memory
+	 * @param bytes the memory its descriptors hold
+	 */
+	public void add(int slot, long bytes) {
+		if(slot_bytes.length <= slot) {
+			slot_bytes = Arrays.copyOf(slot_bytes, Math.max(slot + 1, slot_bytes.length * 2));
+			blocks = Arrays.copyOf(blocks, slot_bytes.length);
+		}
+		slot_bytes[slot] = bytes;
+		evicted.clear(slot);
+		resident.set(slot);
+		resident_bytes += bytes;
+		blocks[slot] = budgeted ? cache.add(owner, slot, bytes) : null;
+	}
+
+	/*
+	 * An image was removed from the library
+	 */
+	public void remove(int slot) {
+		if(resident.get(slot)) {
+			resident_bytes -= slot_bytes[slot];
+			removeBlock(slot);
+		}
+		resident.clear(slot);
+		evicted.clear(slot);
+	}
+
+	/*
+	 * A resident image's descriptors were freed, once written to its descriptor file
+	 */
+	public void evicted(int slot) {
+		if(!resident.get(slot))
+			return;
+		resident.clear(slot);
+		evicted.set(slot);
+		resident_bytes -= slot_bytes[slot];
+		removeBlock(slot);
+	}
+
+	/*
+	 * An evicted image's descriptors were read back from its descriptor file
+	 */
+	public void readBack(int slot) {
+		if(!evicted.get(slot))
+			return;
+		evicted.clear(slot);
+		resident.set(slot);
+		resident_bytes += slot_bytes[slot];
+		blocks[slot] = budgeted ? cache.add(owner, slot, slot_bytes[slot]) : null;
+	}
+
+	public boolean isEvicted(int slot) {
+		return evicted.get(slot);
+	}
+	public BitSet evictedSlots() {
+		return (BitSet) evicted.clone();
+	}
+
+	/*
+	 * @return the memory held by an image's descriptors when it's resident
+	 */
+	public long slotBytes(int slot) {
+		return slot < slot_bytes.length ? slot_bytes[slot] : 0;
+	}
+
+	/*
+	 * @return the memory held by the descriptors of the resident images
+	 */
+	public long residentBytes() {
+		return resident_bytes;
+	}
+
+	/*
+	 * @return whether a block the cache chose to evict is still the block of a resident image
+	 */
+	public boolean owns(DescriptorCache.Block block) {
+		int slot = block.slot();
+		return slot < blocks.length && blocks[slot] == block;
+	}
+
+	/*
+	 * Marks the images a query may match as used, and counts the cache's hits and misses.
+	 * @param admissible the slots of the images the query may match, or null for every image
+	 * @return the evicted images the query needs read back first. Always empty for a query over every image: it only
+	 * matches the resident images, or every such query would read the whole library back and the cache would thrash.
+	 */
+	public BitSet use(BitSet admissible) {
+		long stamp = cache.tick();
+		int hits = 0;
+		int misses = 0;
+		BitSet read_back = new BitSet();
+		for(int slot = resident.nextSetBit(0); slot >= 0; slot = resident.nextSetBit(slot + 1)) {
+			if(blocks[slot] != null && (admissible == null || admissible.get(slot))) {
+				cache.touch(blocks[slot], stamp);
+				++hits;
+			}
+		}
+		for(int slot = evicted.nextSetBit(0); slot >= 0; slot = evicted.nextSetBit(slot + 1)) {
+			if(admissible == null) {
+				++misses;
+			} else if(admissible.get(slot)) {
+				read_back.set(slot);
+				++misses;
+			}
+		}
+		if(budgeted)
+			cache.record(hits, misses);
+		return read_back;
+	}
+
+	private void removeBlock(int slot) {
+		if(blocks[slot] != null)
+			cache.remove(blocks[slot]);
+		blocks[slot] = null;
+	}
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/*
+ * Timings of each stage of a query, and sizes (key points, matches, candidates) along the way, collected in
+ * histograms so we can tell where the time goes when recognition is slow.
+ *
+ * Disabled by default. While disabled, timing a stage costs a single volatile read, and nothing is recorded.
+ * Timings use System.nanoTime(), which is monotonic, so they aren't thrown off by clock changes.
+ *
+ * A stage is timed by taking start() before it and calling lap() after it:
+ *
+ *     long t = metrics.start();
+ *     ... decode ...
+ *     t = metrics.lap(DetectorMetrics.Stage.DECODE, t);
+ *     ... resize ...
+ *     t = metrics.lap(DetectorMetrics.Stage.RESIZE, t);
+ */
+public class DetectorMetrics {
+	// Stages of a query, in the order they run
+	public enum Stage {
+		DECODE,         // reading the query image from disk
+		RESIZE,
+		DETECT,         // finding key points
+		COMPUTE,        // computing their descriptors
+		MATCH,          // including shortlisting, for large libraries
+		FILTER,         // ratio test and distance cap
+		VOTE,
+		LOCATION,       // location filter
+		VERIFY,         // geometric verification of the top candidates
+		TOTAL           // the whole query
+	}
+
+	// Sizes recorded once per query
+	public enum Count {
+		KEY_POINTS,     // key points found in the query image
+		MATCHES,        // query descriptors with a nearest neighbour
+		GOOD_MATCHES,   // matches left after filtering
+		CANDIDATES      // training images that received votes
+	}
+
+	private volatile boolean enabled;
+	private final Histogram[] stages = new Histogram[Stage.values().length];
+	private final Histogram[] counts = new Histogram[Count.values().length];
+
+	public DetectorMetrics() {
+		for(int i = 0; i < stages.length; ++i)
+			stages[i] = new Histogram();
+		for(int i = 0; i < counts.length; ++i)
+			counts[i] = new Histogram();
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/*
+	 * @return the time a stage starts at, or 0 if metrics are disabled
+	 */
+	public long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/*
+	 * Records the time since start as the duration of a stage
+	 * @param stage the stage that just finished
+	 * @param start the time the stage started at, from start() or the previous lap()
+	 * @return the time the next stage starts at, or 0 if metrics were disabled when the stage started
+	 */
+	public long lap(Stage stage, long start) {
+		if(start == 0)
+			return 0;
+		long now = System.nanoTime();
+		stages[stage.ordinal()].record(now - start);
+		return now;
+	}
+
+	/*
+	 * Records a size, if metrics are enabled
+	 */
+	public void count(Count count, long value) {
+		if(enabled)
+			counts[count.ordinal()].record(value);
+	}
+
+	/*
+	 * @return the durations of a stage, in nanoseconds
+	 */
+	public Histogram histogram(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	/*
+	 * @return the values recorded for a size
+	 */
+	public Histogram histogram(Count count) {
+		return counts[count.ordinal()];
+	}
+
+	/*
+	 * Clears everything recorded so far
+	 */
+	public void reset() {
+		for(Histogram histogram : stages)
+			histogram.reset();
+		for(Histogram histogram : counts)
+			histogram.reset();
+	}
+
+	/*
+	 * Writes a table of every stage and size: number of values, mean, median, 90th and 99th percentiles, and maximum.
+	 * Durations are in milliseconds.
+	 */
+	public void write(Writer writer) throws IOException {
+		writer.write(String.format(Locale.US, "%-14s %8s %10s %10s %10s %10s %10s%n", "stage (ms)", "count", "mean", "p50", "p90", "p99", "max"));
+		for(Stage stage : Stage.values()) {
+			Histogram h = histogram(stage);
+			writer.write(String.format(Locale.US, "%-14s %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n", stage.name().toLowerCase(Locale.US), h.count(),
+					h.mean() / 1e6, h.percentile(50) / 1e6, h.percentile(90) / 1e6, h.percentile(99) / 1e6, h.max() / 1e6));
+		}
+		writer.write(String.format(Locale.US, "%n%-14s %8s %10s %10s %10s %10s %10s%n", "size", "count", "mean", "p50", "p90", "p99", "max"));
+		for(Count count : Count.values()) {
+			Histogram h = histogram(count);
+			writer.write(String.format(Locale.US, "%-14s %8d %10.1f %10d %10d %10d %10d%n", count.name().toLowerCase(Locale.US), h.count(),
+					h.mean(), h.percentile(50), h.percentile(90), h.percentile(99), h.max()));
+		}
+	}
+
+	/*
+	 * Writes the table from write() to a file, replacing it
+	 */
+	public void dump(File file) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			write(writer);
+		} finally {
+			writer.close();
+		}
+	}
+}
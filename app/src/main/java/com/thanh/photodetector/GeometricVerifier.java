@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+
+/*
+ * Checks whether the descriptor matches between a query image and a training image are geometrically consistent,
+ * by fitting a homography to the matched key points with RANSAC and counting the matches it explains (the inliers).
+ *
+ * Matches to the right image mostly agree on a single transformation, while chance matches to a wrong image are
+ * scattered, so the inlier count separates true from false candidates much better than the raw match count.
+ */
+public class GeometricVerifier {
+	// A homography needs at least 4 point correspondences
+	public static final int MIN_CORRESPONDENCES = 4;
+
+	private double reprojection_threshold = 5.0;
+	private int max_iterations = 500;
+	private double confidence = 0.995;
+
+	private float[] train_buffer = new float[0];
+	private float[] query_buffer = new float[0];
+
+	/*
+	 * @param threshold maximum distance, in pixels of the resized images, between a key point and the projection of
+	 *                  its match for the match to count as an inlier
+	 */
+	public void setReprojectionThreshold(double threshold) {
+		reprojection_threshold = threshold;
+	}
+
+	/*
+	 * @param iterations maximum number of RANSAC iterations
+	 * @param confidence confidence level at which RANSAC stops early
+	 */
+	public void setRansacParameters(int iterations, double confidence) {
+		max_iterations = iterations;
+		this.confidence = confidence;
+	}
+
+	/*
+	 * Counts the matches to one training image that agree on a homography
+	 * @param matches nearest neighbours of the query descriptors
+	 * @param slot slot of the training image
+	 * @param query_points x and y of the key point of each query descriptor
+	 * @param train_points x and y of the key point of each of the training image's descriptors
+	 * @return the number of inliers, or 0 if no homography could be found
+	 */
+	public int inliers(MatchResult matches, int slot, float[] query_points, float[] train_points) {
+		int count = 0;
+		for(int i = 0; i < matches.count; ++i) {
+			if(matches.train_slot[i] == slot)
+				++count;
+		}
+		if(count < MIN_CORRESPONDENCES)
+			return 0;
+
+		if(train_buffer.length < 2 * count) {
+			train_buffer = new float[2 * count];
+			query_buffer = new float[2 * count];
+		}
+		int n = 0;
+		for(int i = 0; i < matches.count; ++i) {
+			if(matches.train_slot[i] != slot)
+				continue;
+			int row = matches.train_row[i];
+			train_buffer[2 * n] = train_points[2 * row];
+			train_buffer[2 * n + 1] = train_points[2 * row + 1];
+			query_buffer[2 * n] = query_points[2 * i];
+			query_buffer[2 * n + 1] = query_points[2 * i + 1];
+			++n;
+		}
+
+		MatOfPoint2f src = new MatOfPoint2f();
+		MatOfPoint2f dst = new MatOfPoint2f();
+		Mat mask = new Mat();
+		Mat homography = null;
+		try {
+			src.alloc(count);
+			dst.alloc(count);
+			src.put(0, 0, train_buffer);
+			dst.put(0, 0, query_buffer);
+			homography = Calib3d.findHomography(src, dst, Calib3d.RANSAC, reprojection_threshold, mask, max_iterations, confidence);
+			if(homography.empty() || mask.empty())
+				return 0;
+			return Core.countNonZero(mask);
+		} finally {
+			src.release();
+			dst.release();
+			mask.release();
+			if(homography != null)
+				homography.release();
+		}
+	}
+}
@@ -0,0 +1,462 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Brute-force matcher for binary descriptors (e.g. ORB), written in plain Java.
+ *
+ * All training descriptors are packed into a single long[], with each descriptor padded to a whole number of longs
+ * (four longs for a 32-byte ORB descriptor), and distances are computed with Long.bitCount on the XOR of the
+ * words. Descriptors are grouped by training slot (one slot per training image), and a slot's rows are always
+ * contiguous.
+ *
+ * In parallel mode, large queries are split into one partition of slots per core. Each partition is matched on its
+ * own thread and the per-partition neighbours are merged, giving exactly the same result as matching on one thread.
+ *
+ * Training images can be removed without rebuilding the matcher: removing a slot tombstones it, so it's skipped by
+ * queries right away, and its rows are reclaimed later by compact(). Slot numbers never change, so a slot reported by
+ * a query always refers to the same training image.
+ *
+ * Subclasses can replace the exhaustive search with an index over the same packed rows (see LshMatcher).
+ *
+ * Has no OpenCV dependency, so it can be used (and benchmarked) on a plain JVM.
+ */
+public class HammingMatcher {
+	private int bytes_per_row = -1;
+	private int words = -1;                // longs per descriptor
+	private long[] data = new long[0];     // packed descriptors, words longs per row
+	private int rows;                      // number of rows in use in data
+	private int[] row_slot = new int[0];   // slot each row belongs to, or -1 if the slot was removed
+	private int dead_rows;                 // rows of removed slots, reclaimed by compact()
+
+	private int[] slot_start = new int[0]; // first row of each slot, or -1 if the slot is empty
+	private int[] slot_rows = new int[0];  // number of rows in each slot
+	private int slots;                     // one past the highest slot in use
+
+	// Below this many distance computations, splitting a query across threads costs more than it saves
+	private static final long PARALLEL_THRESHOLD = 1 << 16;
+	private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+	// Threads shared by all matchers for parallel matching. ForkJoinPool would be the natural fit, but isn't available before API 21.
+	private static ExecutorService match_executor;
+
+	private boolean parallel;
+	private MatchResult[] partials;        // per-partition results, reused between queries
+	private int[] partition_bounds;        // first slot of each partition, plus one past the last slot
+
+	/*
+	 * Sets whether large queries are split across all cores
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	public boolean getParallel() {
+		return parallel;
+	}
+
+	/*
+	 * Adds the descriptors of a training image
+	 * @param slot the training slot the descriptors belong to. Must not already hold descriptors.
+	 * @param descriptors raw descriptor bytes, row after row
+	 * @param count number of descriptors
+	 * @param bytes_per_row length of a single descriptor, in bytes
+	 */
+	public void add(int slot, byte[] descriptors, int count, int bytes_per_row) {
+		if(count > 0) {
+			if(this.bytes_per_row < 0) {
+				this.bytes_per_row = bytes_per_row;
+				words = wordsPerRow(bytes_per_row);
+			} else if(bytes_per_row != this.bytes_per_row) {
+				throw new IllegalArgumentException("descriptors are " + bytes_per_row + " bytes long; expected " + this.bytes_per_row);
+			}
+		}
+		if(slot < slots && slot_start[slot] >= 0)
+			throw new IllegalArgumentException("slot " + slot + " is already in use");
+
+		ensureSlots(slot + 1);
+		slot_start[slot] = rows;
+		slot_rows[slot] = count;
+		if(count == 0)
+			return;
+
+		ensureRows(rows + count);
+		pack(descriptors, count, bytes_per_row, data, rows * words);
+		Arrays.fill(row_slot, rows, rows + count, slot);
+		rows += count;
+	}
+
+	/*
+	 * Removes the descriptors of a training image. The slot is skipped by queries from now on, but its rows are only
+	 * freed by compact(). Costs time proportional to the number of rows in the slot.
+	 * @param slot the training slot to remove
+	 * @return whether the slot held descriptors
+	 */
+	public boolean remove(int slot) {
+		if(slot < 0 || slot >= slots || slot_start[slot] < 0)
+			return false;
+		int start = slot_start[slot];
+		Arrays.fill(row_slot, start, start + slot_rows[slot], -1);
+		dead_rows += slot_rows[slot];
+		slot_start[slot] = -1;
+		slot_rows[slot] = 0;
+		return true;
+	}
+
+	/*
+	 * Frees the rows of removed slots by moving the remaining rows together. Slot numbers are unchanged.
+	 * Costs time proportional to the number of remaining rows.
+	 */
+	public void compact() {
+		if(dead_rows == 0)
+			return;
+		int live = rows - dead_rows;
+		long[] data = new long[live * words];
+		int[] row_slot = new int[live];
+		int row = 0;
+		for(int slot = 0; slot < slots; ++slot) {
+			int start = slot_start[slot];
+			if(start < 0)
+				continue;
+			int rows = slot_rows[slot];
+			System.arraycopy(this.data, start * words, data, row * words, rows * words);
+			Arrays.fill(row_slot, row, row + rows, slot);
+			slot_start[slot] = row;
+			row += rows;
+		}
+		this.data = data;
+		this.row_slot = row_slot;
+		rows = live;
+		dead_rows = 0;
+		compacted();
+	}
+
+	/*
+	 * Called after compact() has moved rows, so subclasses can rebuild anything that refers to row numbers
+	 */
+	protected void compacted() {
+	}
+
+	/*
+	 * @return the number of rows in the matcher, including rows of removed slots that haven't been compacted yet
+	 */
+	public int size() {
+		return rows;
+	}
+
+	/*
+	 * @return the number of rows of removed slots that compact() would free
+	 */
+	public int deadRows() {
+		return dead_rows;
+	}
+
+	/*
+	 * @return the number of longs each packed descriptor takes up
+	 */
+	public int words() {
+		return words;
+	}
+
+	/*
+	 * @return the slot the given row belongs to, or -1 if the slot was removed
+	 */
+	protected int slotOfRow(int row) {
+		return row_slot[row];
+	}
+
+	/*
+	 * @return the first row of the given slot
+	 */
+	protected int slotStart(int slot) {
+		return slot_start[slot];
+	}
+
+	/*
+	 * @return the Hamming distance between a training row and a packed query descriptor
+	 */
+	protected int distance(int row, long[] query, int query_offset) {
+		final long[] data = this.data;
+		int base = row * words;
+		int d = 0;
+		for(int w = 0; w < words; ++w)
+			d += Long.bitCount(data[base + w] ^ query[query_offset + w]);
+		return d;
+	}
+
+	/*
+	 * @return the given bit of a training row
+	 */
+	protected boolean bit(int row, int bit) {
+		return ((data[row * words + (bit >>> 6)] >>> (bit & 63)) & 1) != 0;
+	}
+
+	/*
+	 * @return the length of a descriptor in bytes, or -1 if no descriptors have been added yet
+	 */
+	public int bytesPerRow() {
+		return bytes_per_row;
+	}
+
+	/*
+	 * Finds the nearest and second-nearest training descriptor of each query descriptor.
+	 * Ties are broken in favour of the earlier slot and row, so results are deterministic.
+	 * @param query query descriptors, packed with pack()
+	 * @param query_rows number of query descriptors
+	 * @param result receives the neighbours of each query descriptor
+	 */
+	public void match(long[] query, int query_rows, MatchResult result) {
+		match(query, query_rows, result, null);
+	}
+
+	/*
+	 * Finds the nearest and second-nearest training descriptor of each query descriptor, only considering the given
+	 * training slots. Descriptors in other slots are never compared against the query.
+	 * @param query query descriptors, packed with pack()
+	 * @param query_rows number of query descriptors
+	 * @param result receives the neighbours of each query descriptor
+	 * @param slots the slots to match against, or null to match against every slot
+	 */
+	public void match(long[] query, int query_rows, MatchResult result, BitSet slots) {
+		if(parallel && CORES > 1 && (long) rows * query_rows >= PARALLEL_THRESHOLD)
+			matchParallel(query, query_rows, result, slots);
+		else
+			matchSlots(query, query_rows, 0, this.slots, slots, result);
+	}
+
+	/*
+	 * Matches the query against the slots in [first_slot, end_slot) that are in the mask
+	 */
+	private void matchSlots(long[] query, int query_rows, int first_slot, int end_slot, BitSet mask, MatchResult result) {
+		result.reset(query_rows);
+		for(int slot = first_slot; slot < end_slot; ++slot) {
+			int start = slot_start[slot];
+			if(start < 0 || (mask != null && !mask.get(slot)))
+				continue;
+			matchRows(query, query_rows, slot, start, start + slot_rows[slot], result);
+		}
+	}
+
+	/*
+	 * Splits the training slots into one partition per core, matches the query against each partition on its own
+	 * thread (the calling thread takes the first partition), then merges the per-partition neighbours.
+	 */
+	private void matchParallel(final long[] query, final int query_rows, MatchResult result, final BitSet mask) {
+		int partitions = partition(CORES);
+		if(partials == null || partials.length < partitions) {
+			partials = new MatchResult[partitions];
+			for(int p = 0; p < partitions; ++p)
+				partials[p] = new MatchResult();
+		}
+
+		List<Future<?>> futures = new ArrayList<>(partitions - 1);
+		ExecutorService executor = getMatchExecutor();
+		for(int p = 1; p < partitions; ++p) {
+			final int first_slot = partition_bounds[p];
+			final int end_slot = partition_bounds[p + 1];
+			final MatchResult partial = partials[p];
+			futures.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					matchSlots(query, query_rows, first_slot, end_slot, mask, partial);
+				}
+			}));
+		}
+		matchSlots(query, query_rows, partition_bounds[0], partition_bounds[1], mask, partials[0]);
+
+		try {
+			for(Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while matching", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+
+		// Merge the partitions in slot order. Only strictly closer neighbours replace the current best, so ties go to
+		// the earlier slot, just like in the single-threaded scan.
+		result.reset(query_rows);
+		for(int p = 0; p < partitions; ++p) {
+			MatchResult partial = partials[p];
+			for(int q = 0; q < query_rows; ++q) {
+				int d = partial.distance[q];
+				if(d < result.distance[q]) {
+					result.second_distance[q] = Math.min(result.distance[q], partial.second_distance[q]);
+					result.distance[q] = d;
+					result.train_slot[q] = partial.train_slot[q];
+					result.train_row[q] = partial.train_row[q];
+				} else if(d < result.second_distance[q]) {
+					result.second_distance[q] = d;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Splits the slots into up to the given number of partitions with roughly equal numbers of rows.
+	 * The boundaries are stored in partition_bounds.
+	 * @return the number of partitions
+	 */
+	private int partition(int partitions) {
+		if(partition_bounds == null || partition_bounds.length < partitions + 1)
+			partition_bounds = new int[partitions + 1];
+
+		int target = (rows + partitions - 1) / partitions;
+		int count = 0;
+		int rows_in_partition = 0;
+		partition_bounds[0] = 0;
+		for(int slot = 0; slot < slots; ++slot) {
+			if(slot_start[slot] < 0)
+				continue;
+			if(rows_in_partition >= target && count < partitions - 1) {
+				++count;
+				partition_bounds[count] = slot;
+				rows_in_partition = 0;
+			}
+			rows_in_partition += slot_rows[slot];
+		}
+		++count;
+		partition_bounds[count] = slots;
+		return count;
+	}
+
+	private static synchronized ExecutorService getMatchExecutor() {
+		if(match_executor == null) {
+			match_executor = Executors.newFixedThreadPool(CORES - 1, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "HammingMatcher-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return match_executor;
+	}
+
+	/*
+	 * Matches the query against a contiguous range of rows belonging to one slot.
+	 * The training rows are the outer loop, so each training descriptor is read once while the (small) query stays
+	 * in cache.
+	 */
+	private void matchRows(long[] query, int query_rows, int slot, int start, int end, MatchResult result) {
+		final long[] data = this.data;
+		final int words = this.words;
+		final int[] train_slot = result.train_slot;
+		final int[] train_row = result.train_row;
+		final int[] distance = result.distance;
+		final int[] second_distance = result.second_distance;
+
+		for(int row = start; row < end; ++row) {
+			int base = row * words;
+			for(int q = 0; q < query_rows; ++q) {
+				int d;
+				int qbase = q * words;
+				if(words == 4) {
+					d = Long.bitCount(data[base] ^ query[qbase])
+							+ Long.bitCount(data[base + 1] ^ query[qbase + 1])
+							+ Long.bitCount(data[base + 2] ^ query[qbase + 2])
+							+ Long.bitCount(data[base + 3] ^ query[qbase + 3]);
+				} else {
+					d = 0;
+					for(int w = 0; w < words; ++w)
+						d += Long.bitCount(data[base + w] ^ query[qbase + w]);
+				}
+
+				if(d < distance[q]) {
+					second_distance[q] = distance[q];
+					distance[q] = d;
+					train_slot[q] = slot;
+					train_row[q] = row - start;
+				} else if(d < second_distance[q]) {
+					second_distance[q] = d;
+				}
+			}
+		}
+	}
+
+	/*
+	 * @return the number of longs needed to hold a descriptor of the given length
+	 */
+	public static int wordsPerRow(int bytes_per_row) {
+		return (bytes_per_row + 7) / 8;
+	}
+
+	/*
+	 * Packs raw descriptor bytes into longs, padding each descriptor to a whole number of longs
+	 * @param descriptors raw descriptor bytes, row after row
+	 * @param count number of descriptors
+	 * @param bytes_per_row length of a single descriptor, in bytes
+	 * @param out array to pack into, reused if it's large enough
+	 * @return the packed descriptors
+	 */
+	public static long[] pack(byte[] descriptors, int count, int bytes_per_row, long[] out) {
+		int length = count * wordsPerRow(bytes_per_row);
+		if(out == null || out.length < length)
+			out = new long[length];
+		pack(descriptors, count, bytes_per_row, out, 0);
+		return out;
+	}
+
+	private static void pack(byte[] descriptors, int count, int bytes_per_row, long[] out, int offset) {
+		int words = wordsPerRow(bytes_per_row);
+		for(int row = 0; row < count; ++row) {
+			int src = row * bytes_per_row;
+			for(int w = 0; w < words; ++w) {
+				long word = 0;
+				int n = Math.min(8, bytes_per_row - w * 8);
+				for(int b = 0; b < n; ++b)
+					word |= (descriptors[src + w * 8 + b] & 0xFFL) << (8 * b);
+				out[offset + row * words + w] = word;
+			}
+		}
+	}
+
+	private void ensureRows(int rows) {
+		if(data.length < rows * words)
+			data = Arrays.copyOf(data, Math.max(rows * words, data.length * 2));
+		if(row_slot.length < rows)
+			row_slot = Arrays.copyOf(row_slot, Math.max(rows, row_slot.length * 2));
+	}
+
+	private void ensureSlots(int slots) {
+		if(slot_start.length < slots) {
+			int capacity = Math.max(slots, slot_start.length * 2);
+			int old = slot_start.length;
+			slot_start = Arrays.copyOf(slot_start, capacity);
+			slot_rows = Arrays.copyOf(slot_rows, capacity);
+			Arrays.fill(slot_start, old, capacity, -1);
+		}
+		this.slots = Math.max(this.slots, slots);
+	}
+}
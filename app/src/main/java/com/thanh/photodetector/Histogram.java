@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Histogram of non-negative long values, safe to record into from any number of threads without locking.
+ *
+ * Buckets are log-linear, as in HdrHistogram: values below 32 get a bucket each, and every power of two above that is
+ * split into 16 equal buckets. Any value is therefore known to within 1/16 (about 6%), over the whole range of a
+ * long, in a fixed 960 buckets.
+ *
+ * Reads aren't atomic with respect to concurrent records, so a percentile taken while values are being recorded may
+ * be off by the values recorded meanwhile.
+ */
+public class Histogram {
+	private static final int LINEAR_BUCKETS = 32;   // values below this get a bucket each
+	private static final int SUB_BUCKET_BITS = 4;   // each power of two above is split into 2^4 buckets
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR_BITS = 5;       // log2(LINEAR_BUCKETS)
+	private static final int BUCKETS = LINEAR_BUCKETS + (63 - LINEAR_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/*
+	 * Records a value. Negative values are recorded as 0.
+	 */
+	public void record(long value) {
+		if(value < 0)
+			value = 0;
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long current = max.get();
+		while(value > current && !max.compareAndSet(current, value))
+			current = max.get();
+	}
+
+	/*
+	 * Clears every recorded value
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKETS; ++i)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/*
+	 * @return the number of values recorded
+	 */
+	public long count() {
+		return count.get();
+	}
+
+	/*
+	 * @return the exact mean of the values recorded, or 0 if there are none
+	 */
+	public double mean() {
+		long count = this.count.get();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	/*
+	 * @return the exact largest value recorded, or 0 if there are none
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/*
+	 * @param percentile percentage of values, from 0 to 100
+	 * @return the largest value of the bucket holding the given percentile, capped at max(); or 0 if no values were recorded
+	 */
+	public long percentile(double percentile) {
+		long count = this.count.get();
+		if(count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; ++i) {
+			seen += counts.get(i);
+			if(seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	private static int bucket(long value) {
+		if(value < LINEAR_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub_bucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+		return LINEAR_BUCKETS + (exponent - LINEAR_BITS) * SUB_BUCKETS + sub_bucket;
+	}
+
+	private static long highestValue(int bucket) {
+		if(bucket < LINEAR_BUCKETS)
+			return bucket;
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + LINEAR_BITS;
+		long mantissa = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS + 1;
+		int shift = exponent - SUB_BUCKET_BITS;
+		if(mantissa << shift < 0)
+			return Long.MAX_VALUE;
+		return (mantissa << shift) - 1;
+	}
+}
@@ -21,25 +21,34 @@ package com.thanh.photodetector;
 
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.DMatch;
+import org.opencv.core.KeyPoint;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.Size;
 import org.opencv.features2d.DescriptorExtractor;
-import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.FeatureDetector;
 import org.opencv.features2d.Features2d;
 import org.opencv.imgcodecs.Imgcodecs;
@@ -53,16 +62,25 @@ public class ImageDetector {
 	/*
 	 * Declare objects that support the process of images detecting
 	 */
-	private FeatureDetector fDetector;
-	private DescriptorExtractor dExtractor;
-	private DescriptorMatcher dMatcher;
+	// FeatureDetector and DescriptorExtractor aren't thread-safe, so each thread gets its own
+	private ThreadLocal<FeatureDetector> fDetector;
+	private ThreadLocal<DescriptorExtractor> dExtractor;
+	private HammingMatcher matcher;
+
+	/*
+	 * Buffers reused from one query to the next
+	 */
+	private MatchResult match_result = new MatchResult();
+	private long[] packed_query;
+	private VoteCounter votes = new VoteCounter();
+	private int[] candidate_slots = new int[0];
 
 	/*
 	 * Variables that support drawCurrentMatches method
+	 * The matches of the result image are only gathered from match_result when they're drawn.
 	 */
 	TrainingImage CURRENT_QUERY_IMAGE;
 	TrainingImage CURRENT_RESULT_IMAGE;
-	MatOfDMatch CURRENT_GOOD_MATCHES;
 
 	/*
 	 *  Maximum length of the sides of images.
@@ -80,6 +98,39 @@ public class ImageDetector {
 	 */
 	double distance_bound;
 
+	/*
+	 * Index of the locations of the training images, by slot, for the location filter.
+	 * Built when first needed, and dropped whenever images are added or removed.
+	 */
+	private SpatialIndex location_index;
+	private BitSet located_slots = new BitSet();
+	private BitSet nearby_slots = new BitSet();
+
+	/*
+	 * Thresholds used for filtering matches in filterByDistance method:
+	 * maximum ratio of the nearest to the second-nearest distance (Lowe's ratio test),
+	 * maximum Hamming distance of a match,
+	 * and minimum number of surviving matches for the query to be identified at all
+	 */
+	double match_ratio;
+	int max_match_distance;
+	int min_good_matches;
+
+	/*
+	 * Geometric verification in findBestMatch: number of top candidates verified (0 to disable, the default, until its
+	 * cost on a device has been measured), minimum number of inliers for a candidate to be accepted,
+	 * and how many times more inliers the winner needs than the best candidate of another item
+	 */
+	int verify_candidates;
+	int min_inliers;
+	double inlier_ratio;
+	private GeometricVerifier verifier = new GeometricVerifier();
+
+	/*
+	 * Timings and sizes of the stages of each query. Disabled until enabled through getMetrics().
+	 */
+	private final DetectorMetrics metrics = new DetectorMetrics();
+
 	/*
 	 * Tag for messages printed to LogCat
 	 */
@@ -91,35 +142,180 @@ public class ImageDetector {
 	protected static final String ERROR = "Error in ImageDetector";
 
 	/*
-	 * List of all training images
+	 * List of all training images, indexed by their slot in the matcher.
+	 * Removed images leave a null entry, so the slots of the other images never change.
 	 */
 	private List<TrainingImage> training_library;
 
+	/*
+	 * Slot of each image in the library, by path, and images removed before their background build finished
+	 */
+	private Map<String,Integer> library_slots;
+	private Set<String> pending_removals;
+
+	/*
+	 * Slots of the images of each tour item, for building admissible-slot masks,
+	 * and the tour item of each slot, for voting
+	 */
+	private Map<Long,BitSet> item_slots;
+	private long[] slot_items = new long[0];
+	private boolean compaction_scheduled;
+
+	/*
+	 * Descriptor blocks from the tour's packed index, by image filename.
+	 * Each block is a row range of a single matrix holding the whole index. Images loaded from a block get a header of
+	 * their own onto its rows, so a block can be released while they still use it.
+	 * Only used while holding the detector's lock.
+	 */
+	private Map<String,Mat> packed_descriptors;
+	private Map<String,float[]> packed_points;
+
+	/*
+	 * Whether the packed index on disk is out of date, and the item index it records for each image
+	 */
+	private boolean pack_dirty;
+	private Map<String,Integer> packed_items;
+
+	/*
+	 * Paging of descriptors, so a large library doesn't have to stay in memory: the process-wide cache that keeps the
+	 * descriptors of every budgeted detector under one budget, and the pager that tracks which slots are resident.
+	 * Evicted slots are read back when a filtered query admits them; queries with no admissible slots only match the
+	 * images in memory, since reading back the whole library would defeat the budget. Detectors are unbudgeted until
+	 * setBudgeted(), so they keep the whole library in memory.
+	 */
+	private final DescriptorCache cache;
+	private final DescriptorPager pager;
+	private final DescriptorCache.Owner cache_owner = new DescriptorCache.Owner() {
+		@Override
+		public void evict(List<DescriptorCache.Block> blocks) {
+			evictBlocks(blocks);
+		}
+	};
+
+	/*
+	 * Held while retainItems reads and writes descriptor files, so only one caller evicts at a time
+	 */
+	private final Object paging_lock = new Object();
+
+	/*
+	 * Bag-of-words shortlisting: the visual vocabulary trained from the library, the inverted file over the library,
+	 * and bags of words read from disk that are waiting for their images to be added.
+	 * Only used once the library has at least min_shortlist_library images.
+	 */
+	private Vocabulary vocabulary;
+	private InvertedIndex inverted_index;
+	private Map<String,InvertedIndex.Bag> stored_bags;
+	private boolean vocabulary_dirty;
+	private boolean bags_dirty;
+	private boolean training_vocabulary;
+	private BitSet shortlist = new BitSet();
+	private int[] query_words;
+
+	/*
+	 * Number of images shortlisted for exact matching, and the library size from which shortlisting is used
+	 */
+	int shortlist_size;
+	int min_shortlist_library;
+
+	/*
+	 * Settings for training vocabularies: number of visual words, maximum number of descriptors to cluster,
+	 * and maximum number of clustering rounds
+	 */
+	private static final int VOCABULARY_SIZE = 256;
+	private static final int VOCABULARY_SAMPLE = 20000;
+	private static final int VOCABULARY_ITERATIONS = 10;
+
+	/*
+	 * Worker pool shared by all detectors for building training libraries in the background.
+	 * Sized to the number of cores, since descriptor extraction is CPU-bound.
+	 */
+	private static ExecutorService build_executor;
+
+	/*
+	 * Progress of the background library builds, and the listeners to notify about it
+	 */
+	private final AtomicInteger build_completed = new AtomicInteger();
+	private final AtomicInteger build_total = new AtomicInteger();
+	private final List<BuildListener> build_listeners = new CopyOnWriteArrayList<>();
+
+	/*
+	 * Interface for classes that want to follow the progress of background library builds.
+	 * Methods are called from worker threads.
+	 */
+	public interface BuildListener {
+		void onBuildProgress(int completed, int total);
+		void onBuildFinished();
+	}
+
 	/*
 	 * Default constructor.
-	 * Uses ORB detector, ORB extractor, and BRUTEFORCE_HAMMINGLUT matcher.
+	 * Uses ORB detector and ORB extractor.
 	 */
 	public ImageDetector() {
-		this(FeatureDetector.ORB, DescriptorExtractor.ORB, DescriptorMatcher.BRUTEFORCE_HAMMINGLUT);
+		this(FeatureDetector.ORB, DescriptorExtractor.ORB);
+	}
+
+	/*
+	 * Constructor that uses detecting algorithms specified by the parameters.
+	 * Descriptors are matched by Hamming distance, so the extractor must produce binary descriptors.
+	 */
+	public ImageDetector(int detector_type, int extractor_type) {
+		this(detector_type, extractor_type, new HammingMatcher());
+	}
+
+	/*
+	 * Constructor that uses detecting algorithms specified by the parameters, and the given matcher.
+	 * Pass an LshMatcher to use approximate matching for large tours, or a HammingMatcher for exact matching.
+	 */
+	public ImageDetector(final int detector_type, final int extractor_type, HammingMatcher descriptor_matcher)
+	{
+		this(detector_type, extractor_type, descriptor_matcher, DescriptorCache.getInstance());
 	}
 
 	/*
-	 * Constructor that uses detecting algorithms specified by the parameters
+	 * Constructor that uses detecting algorithms specified by the parameters, the given matcher,
+	 * and the given cache to keep its descriptors' memory in budget
 	 */
-	public ImageDetector(int detector_type, int extractor_type, int matcher_type)
+	public ImageDetector(final int detector_type, final int extractor_type, HammingMatcher descriptor_matcher, DescriptorCache descriptor_cache)
 	{
-		fDetector = FeatureDetector.create
-				(detector_type);
-		dExtractor = DescriptorExtractor.create
-				(extractor_type);
-		dMatcher= DescriptorMatcher.create
-				(matcher_type);
+		fDetector = new ThreadLocal<FeatureDetector>() {
+			@Override
+			protected FeatureDetector initialValue() {
+				return FeatureDetector.create(detector_type);
+			}
+		};
+		dExtractor = new ThreadLocal<DescriptorExtractor>() {
+			@Override
+			protected DescriptorExtractor initialValue() {
+				return DescriptorExtractor.create(extractor_type);
+			}
+		};
+		matcher = descriptor_matcher;
+		matcher.setParallel(true);
+		cache = descriptor_cache;
+		pager = new DescriptorPager(cache, cache_owner);
 		training_library= new ArrayList<TrainingImage>();
+		library_slots = new HashMap<>();
+		item_slots = new HashMap<>();
+		pending_removals = new HashSet<>();
+		packed_descriptors = new HashMap<>();
+		packed_points = new HashMap<>();
+		packed_items = new HashMap<>();
+		pack_dirty = true;
+		stored_bags = new HashMap<>();
 		
 		// Specific values selected after experimenting with different data sets
 		max_side = 300;
 		filter_ratio = 5;
 		distance_bound = 50;
+		match_ratio = 0.8;
+		max_match_distance = 64;
+		min_good_matches = 8;
+		shortlist_size = 10;
+		min_shortlist_library = 50;
+		verify_candidates = 0;
+		min_inliers = 12;
+		inlier_ratio = 1.5;
 	}
 
 	/*
@@ -129,42 +325,760 @@ public class ImageDetector {
 	 */
 	public void addToLibrary(String image_path, long tour_item_id)
 	{
-		Mat imgDescriptor;
-		TrainingImage training_img;
-		File descriptor_file = new File(image_path + ".descriptors.yaml");
-		// Check if the image's features have already been extracted
-		if(!descriptor_file.exists()) {
-			Mat img = Imgcodecs.imread(image_path);
-			// reduce the image's size to increase the runtime and save the memory
-			Mat resized_img = resize(img);  
-			training_img = new TrainingImage(image_path, tour_item_id, resized_img);
-			imgDescriptor = imgDescriptor(training_img);
-		} else {
-			imgDescriptor = loadImageDescriptors(descriptor_file);
-			training_img = new TrainingImage(image_path, tour_item_id, null, imgDescriptor);
+		synchronized(this) {
+			pending_removals.remove(image_path);
+		}
+		TrainingImage training_img = loadTrainingImage(image_path, tour_item_id);
+		synchronized(this) {
+			register(training_img);
+			trainVocabularyIfNeeded();
+		}
+	}
+
+	/*
+	 * Adds a new image to the train library in the background
+	 * @param image_path the path of the image
+	 * @param tour_item_id the id of the tour item (whom the image belongs to)
+	 */
+	public void addToLibraryAsync(String image_path, long tour_item_id)
+	{
+		addToLibraryAsync(Collections.singletonList(image_path), Collections.singletonList(tour_item_id));
+	}
+
+	/*
+	 * Adds a batch of images to the train library in the background.
+	 * Descriptors are extracted (or loaded) in parallel on the shared worker pool. The batch is only added to the
+	 * library once every image is ready, so identification never sees a partly-added batch.
+	 * @param image_paths the paths of the images
+	 * @param tour_item_ids the id of the tour item each image belongs to
+	 */
+	public void addToLibraryAsync(List<String> image_paths, List<Long> tour_item_ids)
+	{
+		final int count = image_paths.size();
+		if(count == 0)
+			return;
+
+		synchronized(this) {
+			pending_removals.removeAll(image_paths);
+		}
+		build_total.addAndGet(count);
+		final TrainingImage[] results = new TrainingImage[count];
+		final AtomicInteger remaining = new AtomicInteger(count);
+		ExecutorService executor = getBuildExecutor();
+		for(int i = 0; i < count; ++i) {
+			final int index = i;
+			final String image_path = image_paths.get(i);
+			final long tour_item_id = tour_item_ids.get(i);
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						results[index] = loadTrainingImage(image_path, tour_item_id);
+					} catch (Exception e) {
+						Log.e(TAG, "could not add '" + image_path + "' to the library: " + e.toString());
+					}
+
+					int completed = build_completed.incrementAndGet();
+					for(BuildListener l : build_listeners)
+						l.onBuildProgress(completed, build_total.get());
+
+					if(remaining.decrementAndGet() == 0)
+						commit(results);
+				}
+			});
+		}
+	}
+
+	/*
+	 * Adds a finished batch of images to the library in one step
+	 */
+	private void commit(TrainingImage[] images)
+	{
+		synchronized(this) {
+			for(TrainingImage image : images) {
+				if(image != null)
+					register(image);
+			}
+			trainVocabularyIfNeeded();
+		}
+		if(!isBuilding()) {
+			for(BuildListener l : build_listeners)
+				l.onBuildFinished();
+		}
+	}
+
+	/*
+	 * Adds an image whose descriptors are ready to the matcher and the training library.
+	 * Must be called while holding the detector's lock.
+	 */
+	private void register(TrainingImage training_img)
+	{
+		if(pending_removals.remove(training_img.pathID())) {
+			// removed while it was still being built
+			return;
+		}
+
+		String name = training_img.name();
+		if(!packed_descriptors.containsKey(name)
+				|| (training_img.keyPointCoordinates() != null && !packed_points.containsKey(name))) {
+			// the packed index will need to be rewritten to include this image
+			pack_dirty = true;
 		}
 
-		// add image to dMacher's internal training library
-		dMatcher.add(Arrays.asList(imgDescriptor));
+		// add image to the matcher, in the slot matching its index in training_library
+		int slot = training_library.size();
+		Mat descriptors = training_img.descriptors();
+		try {
+			matcher.add(slot, descriptorBytes(descriptors), descriptors.rows(), (int) (descriptors.cols() * descriptors.elemSize()));
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "could not add " + training_img.pathID() + " to the matcher: " + e.getMessage());
+		}
 
 		// add image to training_library
 		training_library.add(training_img);
+		library_slots.put(training_img.pathID(), slot);
+		BitSet slots = item_slots.get(training_img.tourID());
+		if(slots == null) {
+			slots = new BitSet();
+			item_slots.put(training_img.tourID(), slots);
+		}
+		slots.set(slot);
+		if(slot_items.length <= slot) {
+			slot_items = Arrays.copyOf(slot_items, Math.max(slot + 1, slot_items.length * 2));
+		}
+		slot_items[slot] = training_img.tourID();
+		pager.add(slot, residentBytes(descriptors));
+
+		if(inverted_index != null)
+			indexWords(slot, training_img);
+		if(training_img.location() != null)
+			location_index = null;
+	}
+
+	/*
+	 * Adds an image's bag of words to the inverted file, using the stored bag if there is one.
+	 * Must be called while holding the detector's lock.
+	 */
+	private void indexWords(int slot, TrainingImage training_img)
+	{
+		InvertedIndex.Bag bag = stored_bags.remove(training_img.name());
+		if(bag == null) {
+			// evicted images are quantised once they're read back
+			if(training_img.descriptors() == null)
+				return;
+			bag = bagOfWords(vocabulary, training_img.descriptors());
+			bags_dirty = true;
+		}
+		if(bag != null)
+			inverted_index.add(slot, bag);
+	}
+
+	/*
+	 * Quantises descriptors to the visual words of a vocabulary
+	 * @return the bag of words, or null if the descriptors don't fit the vocabulary
+	 */
+	private static InvertedIndex.Bag bagOfWords(Vocabulary vocabulary, Mat descriptors)
+	{
+		int rows = descriptors.rows();
+		int bytes_per_row = (int) (descriptors.cols() * descriptors.elemSize());
+		if(rows > 0 && HammingMatcher.wordsPerRow(bytes_per_row) != vocabulary.words())
+			return null;
+		long[] packed = HammingMatcher.pack(descriptorBytes(descriptors), rows, bytes_per_row, null);
+		int[] words = vocabulary.quantize(packed, rows, null);
+		return InvertedIndex.Bag.of(words, rows, vocabulary.size());
+	}
+
+	/*
+	 * Trains a visual vocabulary in the background once the library is large enough for shortlisting,
+	 * then builds the inverted file over the library.
+	 * Must be called while holding the detector's lock.
+	 */
+	private void trainVocabularyIfNeeded()
+	{
+		if(vocabulary != null || training_vocabulary || library_slots.size() < min_shortlist_library)
+			return;
+		training_vocabulary = true;
+
+		// descriptors never change once added, so the snapshot can be read without the lock
+		final List<Mat> snapshot = new ArrayList<>();
+		for(TrainingImage image : training_library)
+			snapshot.add(image != null ? image.descriptors() : null);
+
+		getBuildExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Vocabulary trained = trainVocabulary(snapshot);
+					InvertedIndex.Bag[] bags = new InvertedIndex.Bag[snapshot.size()];
+					for(int slot = 0; slot < bags.length; ++slot) {
+						if(snapshot.get(slot) != null)
+							bags[slot] = bagOfWords(trained, snapshot.get(slot));
+					}
+					installVocabulary(trained, bags);
+				} catch (Exception e) {
+					Log.e(TAG, "could not train a vocabulary: " + e.toString());
+				} finally {
+					synchronized(ImageDetector.this) {
+						training_vocabulary = false;
+					}
+				}
+			}
+		});
+	}
+
+	/*
+	 * Trains a vocabulary on a random sample of the descriptors of the given images
+	 */
+	private static Vocabulary trainVocabulary(List<Mat> images)
+	{
+		int total = 0;
+		int bytes_per_row = 0;
+		for(Mat m : images) {
+			if(m == null)
+				continue;
+			total += m.rows();
+			if(m.rows() > 0)
+				bytes_per_row = (int) (m.cols() * m.elemSize());
+		}
+		int words = HammingMatcher.wordsPerRow(bytes_per_row);
+		Random random = new Random();
+		double keep = Math.min(1.0, (double) VOCABULARY_SAMPLE / total);
+
+		long[] sample = new long[Math.min(total, VOCABULARY_SAMPLE) * words];
+		int rows = 0;
+		long[] packed = null;
+		for(Mat m : images) {
+			if(m == null || m.rows() == 0 || m.cols() * m.elemSize() != bytes_per_row)
+				continue;
+			packed = HammingMatcher.pack(descriptorBytes(m), m.rows(), bytes_per_row, packed);
+			for(int row = 0; row < m.rows() && rows < sample.length / words; ++row) {
+				if(keep < 1 && random.nextDouble() >= keep)
+					continue;
+				System.arraycopy(packed, row * words, sample, rows * words, words);
+				++rows;
+			}
+		}
+		long start = System.currentTimeMillis();
+		Vocabulary trained = Vocabulary.train(sample, rows, words, VOCABULARY_SIZE, VOCABULARY_ITERATIONS, random);
+		Log.i(TAG, "trained a vocabulary of " + trained.size() + " words on " + rows + " descriptors in " + (System.currentTimeMillis() - start) + " ms");
+		return trained;
+	}
+
+	/*
+	 * Starts using a newly trained vocabulary
+	 * @param bags bags of words of the first bags.length slots; later slots are quantised here
+	 */
+	private synchronized void installVocabulary(Vocabulary trained, InvertedIndex.Bag[] bags)
+	{
+		vocabulary = trained;
+		inverted_index = new InvertedIndex(trained.size());
+		stored_bags.clear();
+		for(int slot = 0; slot < training_library.size(); ++slot) {
+			TrainingImage image = training_library.get(slot);
+			if(image == null)
+				continue;
+			InvertedIndex.Bag bag = slot < bags.length && bags[slot] != null ? bags[slot] : null;
+			if(bag == null && image.descriptors() != null)
+				bag = bagOfWords(trained, image.descriptors());
+			if(bag != null)
+				inverted_index.add(slot, bag);
+		}
+		vocabulary_dirty = true;
+		bags_dirty = true;
+	}
+
+	/*
+	 * Removes an image from the library without rebuilding it. The image's slot is tombstoned, so it's skipped by
+	 * queries right away; its descriptors are freed by a compaction in the background once enough have piled up.
+	 * Images that are still being built are dropped when their build finishes.
+	 * @param image_path the path of the image
+	 * @return whether the image was in the library
+	 */
+	public synchronized boolean removeFromLibrary(String image_path)
+	{
+		Integer slot = library_slots.remove(image_path);
+		if(slot == null) {
+			pending_removals.add(image_path);
+			return false;
+		}
+
+		TrainingImage training_img = training_library.get(slot);
+		matcher.remove(slot);
+		training_library.set(slot, null);
+		BitSet slots = item_slots.get(training_img.tourID());
+		slots.clear(slot);
+		if(slots.isEmpty())
+			item_slots.remove(training_img.tourID());
+		if(inverted_index != null && inverted_index.remove(slot))
+			bags_dirty = true;
+		stored_bags.remove(training_img.name());
+		releasePackedBlock(training_img.name());
+		packed_points.remove(training_img.name());
+		pack_dirty = true;
+		pager.remove(slot);
+		if(training_img.location() != null)
+			location_index = null;
+
+		scheduleCompaction();
+		return true;
+	}
+
+	/*
+	 * Compacts the matcher in the background once a quarter of its rows belong to removed images.
+	 * Must be called while holding the detector's lock.
+	 */
+	private void scheduleCompaction()
+	{
+		if(compaction_scheduled || matcher.deadRows() * 4 < matcher.size())
+			return;
+		compaction_scheduled = true;
+		getBuildExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(ImageDetector.this) {
+					compaction_scheduled = false;
+					int freed = matcher.deadRows();
+					matcher.compact();
+					Log.d(TAG, "compacted the matcher, freeing " + freed + " rows");
+				}
+			}
+		});
+	}
+
+	/*
+	 * Keeps the descriptors of the given items' images in memory, reading back any that were evicted, and evicts
+	 * those of every other image to its descriptor file. Evicted images stay in the library: a query that admits them
+	 * reads them back first, so results don't change, only get slower.
+	 * Files are read and written without holding the detector's lock, so queries aren't held up.
+	 * An unbudgeted detector evicts nothing.
+	 * Safe to call from any thread, but meant for a background one.
+	 * @param item_ids ids of the items to keep in memory
+	 * @return the number of images read back or evicted
+	 */
+	public int retainItems(Collection<Long> item_ids)
+	{
+		synchronized(paging_lock) {
+			BitSet evict = new BitSet();
+			BitSet read_back;
+			synchronized(this) {
+				BitSet keep = admissibleSlots(item_ids);
+				for(int slot = 0; slot < training_library.size() && pager.isBudgeted(); ++slot) {
+					if(training_library.get(slot) != null && !keep.get(slot) && !pager.isEvicted(slot))
+						evict.set(slot);
+				}
+				read_back = pager.evictedSlots();
+				read_back.and(keep);
+			}
+			return page(evict, read_back);
+		}
+	}
+
+	/*
+	 * Evicts the images of the given cache blocks, unless they've been evicted or removed since
+	 */
+	private void evictBlocks(List<DescriptorCache.Block> blocks)
+	{
+		synchronized(paging_lock) {
+			BitSet evict = new BitSet();
+			synchronized(this) {
+				for(DescriptorCache.Block block : blocks) {
+					if(pager.owns(block))
+						evict.set(block.slot());
+				}
+			}
+			page(evict, new BitSet());
+		}
+	}
+
+	/*
+	 * Sets whether the library's descriptors count against the process-wide DescriptorCache budget, so the least
+	 * recently used images may be evicted to their descriptor files. Only detectors whose queries are filtered, e.g.
+	 * by location, should be budgeted: a query over the whole library only matches the images in memory.
+	 * Unbudgeting reads back every evicted image on a background thread. Safe to call from any thread.
+	 */
+	public void setBudgeted(final boolean budgeted)
+	{
+		final BitSet read_back;
+		synchronized(this) {
+			read_back = pager.setBudgeted(budgeted);
+		}
+		if(read_back.isEmpty())
+			return;
+		getBuildExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized(paging_lock) {
+					page(new BitSet(), read_back);
+				}
+			}
+		});
+	}
+
+	/*
+	 * Evicts and reads back images, reading and writing their descriptor files without holding the detector's lock.
+	 * Must be called while holding paging_lock, but not the detector's lock.
+	 * @param evict the slots to evict
+	 * @param read_back the slots to read back
+	 * @return the number of images read back or evicted
+	 */
+	private int page(BitSet evict, BitSet read_back)
+	{
+		TrainingImage[] images;
+		synchronized(this) {
+			images = training_library.toArray(new TrainingImage[training_library.size()]);
+			// the vocabulary is trained from a snapshot of the descriptors, so none can be freed until it's done
+			if(training_vocabulary)
+				evict.clear();
+		}
+
+		// an image can only be evicted once its descriptors are safely on disk
+		for(int slot = evict.nextSetBit(0); slot >= 0; slot = evict.nextSetBit(slot + 1)) {
+			if(images[slot] == null || !writeDescriptorFile(images[slot]))
+				evict.clear(slot);
+		}
+		DescriptorFile[] data = new DescriptorFile[images.length];
+		for(int slot = read_back.nextSetBit(0); slot >= 0; slot = read_back.nextSetBit(slot + 1)) {
+			if(images[slot] != null)
+				data[slot] = readDescriptorFile(images[slot]);
+		}
+
+		int paged = 0;
+		synchronized(this) {
+			// skip images that were removed (or read back by a query) in the meantime
+			for(int slot = evict.nextSetBit(0); slot >= 0; slot = evict.nextSetBit(slot + 1)) {
+				if(training_library.get(slot) == images[slot] && !pager.isEvicted(slot) && pager.isBudgeted() && !training_vocabulary) {
+					evict(slot);
+					++paged;
+				}
+			}
+			for(int slot = read_back.nextSetBit(0); slot >= 0; slot = read_back.nextSetBit(slot + 1)) {
+				if(data[slot] != null && training_library.get(slot) == images[slot] && pager.isEvicted(slot)) {
+					readBack(slot, data[slot]);
+					++paged;
+				}
+			}
+			scheduleCompaction();
+			if(paged > 0)
+				Log.d(TAG, "paged " + paged + " images; " + (pager.residentBytes() >> 10) + " KB of descriptors resident");
+		}
+		return paged;
+	}
+
+	/*
+	 * @return the memory, in bytes, held by the descriptors of an item's images when they're in memory
+	 */
+	public synchronized long itemBytes(long item_id)
+	{
+		BitSet slots = item_slots.get(item_id);
+		if(slots == null)
+			return 0;
+		long bytes = 0;
+		for(int slot = slots.nextSetBit(0); slot >= 0; slot = slots.nextSetBit(slot + 1))
+			bytes += pager.slotBytes(slot);
+		return bytes;
+	}
+
+	/*
+	 * @return the memory, in bytes, held by the descriptors of the images that are in memory
+	 */
+	public synchronized long residentBytes()
+	{
+		return pager.residentBytes();
+	}
+
+	/*
+	 * @return the memory held by an image's descriptors: the descriptors themselves, their packed copy in the matcher,
+	 * and the coordinates of their key points
+	 */
+	private static long residentBytes(Mat descriptors)
+	{
+		int bytes_per_row = (int) (descriptors.cols() * descriptors.elemSize());
+		return (long) descriptors.rows() * (bytes_per_row + 8 * HammingMatcher.wordsPerRow(bytes_per_row) + 8);
+	}
+
+	/*
+	 * Marks the images a query may match as used, reading back those that were evicted.
+	 * An unfiltered query only matches the images in memory: its evicted images are counted as misses, but aren't read
+	 * back, or every query would read the whole library into memory and the cache would only thrash.
+	 * Must be called while holding the detector's lock.
+	 * @param admissible_slots the slots of the qualified images, or null for all images in memory
+	 */
+	private void useAdmissible(BitSet admissible_slots)
+	{
+		BitSet read_back = pager.use(admissible_slots);
+		for(int slot = read_back.nextSetBit(0); slot >= 0; slot = read_back.nextSetBit(slot + 1)) {
+			DescriptorFile data = readDescriptorFile(training_library.get(slot));
+			if(data != null)
+				readBack(slot, data);
+		}
+		if(!read_back.isEmpty())
+			Log.i(TAG, "read back " + read_back.cardinality() + " evicted images for a query");
+	}
+
+	/*
+	 * Frees the descriptors of an image, leaving it in the library.
+	 * Must be called while holding the detector's lock, once the image's descriptor file has been written.
+	 */
+	private void evict(int slot)
+	{
+		TrainingImage image = training_library.get(slot);
+		matcher.remove(slot);
+		Mat descriptors = image.descriptors();
+		image.setDescriptors(null);
+		image.setKeyPoints(null);
+		// a block of the packed index shares its matrix with the rest of the index, which stays until every block is freed
+		releasePackedBlock(image.name());
+		descriptors.release();
+		pager.evicted(slot);
+	}
+
+	/*
+	 * Restores the descriptors of an evicted image from its descriptor file.
+	 * Must be called while holding the detector's lock.
+	 */
+	private void readBack(int slot, DescriptorFile data)
+	{
+		TrainingImage image = training_library.get(slot);
+		Mat descriptors = loadImageDescriptors(data);
+		image.setDescriptors(descriptors);
+		image.setKeyPointCoordinates(data.points());
+		try {
+			matcher.add(slot, data.bytes(), descriptors.rows(), (int) (descriptors.cols() * descriptors.elemSize()));
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "could not add " + image.pathID() + " back to the matcher: " + e.getMessage());
+		}
+		pager.readBack(slot);
+		if(inverted_index != null && inverted_index.bag(slot) == null)
+			indexWords(slot, image);
+	}
+
+	/*
+	 * Writes an image's descriptors to its descriptor file, unless it already has one
+	 * @return whether the file exists
+	 */
+	private static boolean writeDescriptorFile(TrainingImage image)
+	{
+		File file = new File(image.pathID() + DescriptorFile.EXTENSION);
+		if(file.exists())
+			return true;
+		try {
+			toDescriptorFile(image.descriptors(), image.keyPointCoordinates()).write(file);
+			Log.d(TAG, "saved '" + file + "'");
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+			return false;
+		}
+	}
+
+	/*
+	 * Drops an image's block of the packed index, if it has one.
+	 * Must be called while holding the detector's lock.
+	 */
+	private void releasePackedBlock(String name)
+	{
+		Mat block = packed_descriptors.remove(name);
+		if(block != null)
+			block.release();
+	}
+
+	/*
+	 * Reads an evicted image's descriptors from its descriptor file
+	 * @return the descriptors, or null if the file couldn't be read
+	 */
+	private static DescriptorFile readDescriptorFile(TrainingImage image)
+	{
+		try {
+			return DescriptorFile.read(new File(image.pathID() + DescriptorFile.EXTENSION));
+		} catch (IOException e) {
+			Log.e(TAG, "could not read back the descriptors of " + image.pathID() + ": " + e.toString());
+			return null;
+		}
+	}
+
+	/*
+	 * Creates a TrainingImage with its descriptors, loading them from disk if they've already been extracted.
+	 * Safe to call from any thread without the detector's lock: the packed index is only looked up while holding it,
+	 * and files are read and features extracted after it's released.
+	 */
+	private TrainingImage loadTrainingImage(String image_path, long tour_item_id)
+	{
+		Mat imgDescriptor = null;
+		float[] key_point_coordinates = null;
+		File descriptor_file = new File(image_path + DescriptorFile.EXTENSION);
+		File yaml_file = new File(image_path + DescriptorFile.YAML_EXTENSION);
+		String name = new File(image_path).getName();
+		// Check if the image's features have already been extracted
+		synchronized(this) {
+			Mat block = packed_descriptors.get(name);
+			if(block != null) {
+				// a header of the image's own, sharing the block's rows, so the block may be released once we let go of the lock
+				imgDescriptor = block.rowRange(0, block.rows());
+				key_point_coordinates = packed_points.get(name);
+			}
+		}
+		if(imgDescriptor == null && descriptor_file.exists()) {
+			try {
+				DescriptorFile data = DescriptorFile.read(descriptor_file);
+				imgDescriptor = loadImageDescriptors(data);
+				key_point_coordinates = data.points();
+			} catch (IOException e) {
+				Log.e(TAG, e.toString());
+			}
+		} else if(imgDescriptor == null && yaml_file.exists()) {
+			imgDescriptor = loadImageDescriptors(yaml_file);
+		}
+
+		if(imgDescriptor != null) {
+			TrainingImage training_img = new TrainingImage(image_path, tour_item_id, null, imgDescriptor);
+			training_img.setKeyPointCoordinates(key_point_coordinates);
+			return training_img;
+		}
+
+		Mat img = Imgcodecs.imread(image_path);
+		// reduce the image's size to increase the runtime and save the memory
+		Mat resized_img = resize(img);
+		TrainingImage training_img = new TrainingImage(image_path, tour_item_id, resized_img);
+		imgDescriptor(training_img);
+
+		// only the descriptors and their key points' coordinates are used from now on
+		float[] coordinates = training_img.keyPointCoordinates();
+		training_img.keyPoints().release();
+		training_img.setKeyPoints(null);
+		training_img.setKeyPointCoordinates(coordinates);
+		resized_img.release();
+		training_img.setImage(null);
+		return training_img;
+	}
+
+	/*
+	 * @return whether any background library builds are still running
+	 */
+	public boolean isBuilding() {
+		return build_completed.get() < build_total.get();
+	}
+
+	/*
+	 * @return the number of images processed and queued by background library builds
+	 */
+	public int buildCompleted() {
+		return build_completed.get();
+	}
+	public int buildTotal() {
+		return build_total.get();
+	}
+
+	public void addBuildListener(BuildListener l) {
+		build_listeners.add(l);
+	}
+	public void removeBuildListener(BuildListener l) {
+		build_listeners.remove(l);
+	}
+
+	private static synchronized ExecutorService getBuildExecutor() {
+		if(build_executor == null) {
+			build_executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ImageDetector-build-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return build_executor;
+	}
+
+	/*
+	 * Sets whether queries against large libraries are matched on all cores.
+	 * Either way, the result is the same. Only affects exhaustive matching.
+	 */
+	public synchronized void setParallelMatching(boolean parallel)
+	{
+		matcher.setParallel(parallel);
+	}
+
+	/*
+	 * Sets how many of the top candidates are geometrically verified before choosing the best match.
+	 * Verification uses the key points of the images; with 0, the default, the best match is chosen by match counts alone.
+	 * Each verified candidate costs a RANSAC homography, so measure the latency on the target devices (e.g. with
+	 * getMetrics()) before enabling it. 3 candidates is a reasonable start.
+	 */
+	public synchronized void setGeometricVerification(int candidates)
+	{
+		verify_candidates = candidates;
+	}
+
+	/*
+	 * Returns the timings and sizes recorded for the stages of each query.
+	 * Can be read and enabled from any thread, without holding the detector's lock.
+	 */
+	public DetectorMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/*
+	 * Method that identifies the tour item the given image belongs to
+	 * @param image_path the path of the image used for identification
+	 * @param item_ids the list of qualified items, or null for every item
+	 * @return the id
+	 */
+	public synchronized long identifyObject(String image_path, List<Long> item_ids)
+	{
+		return identifyObject(image_path, admissibleSlots(item_ids));
 	}
 
 	/*
 	 * Method that identifies the tour item the given image belongs to
 	 * @param image_path the path of the image used for identification
-	 * @param item_ids the list of qualified items
+	 * @param admissible_slots the slots of the qualified images, from admissibleSlots(), or null for all images in memory
 	 * @return the id
 	 */
-	public long identifyObject(String image_path, List<Long> item_ids)
+	public synchronized long identifyObject(String image_path, BitSet admissible_slots)
 	{
-		TrainingImage result = detectPhoto(image_path, item_ids);
+		TrainingImage result = detectPhoto(image_path, admissible_slots);
 		if(result == null)
 			return -1;
 		return result.tourID();
 	}
 
+	/*
+	 * Method that identifies the tour item shown in a camera frame
+	 * @param frame the frame, e.g. the gray plane of a camera preview frame. It isn't modified.
+	 * @param admissible_slots the slots of the qualified images, from admissibleSlots(), or null for all images in memory
+	 * @return the id, or -1 if no item was identified
+	 */
+	public synchronized long identifyFrame(Mat frame, BitSet admissible_slots)
+	{
+		TrainingImage result = detectFrame(frame, admissible_slots);
+		if(result == null)
+			return -1;
+		return result.tourID();
+	}
+
+	/*
+	 * Builds the mask of training slots belonging to the given tour items.
+	 * The mask stays valid until images are added to or removed from the library.
+	 * @param item_ids the qualified items, or null for every item
+	 * @return the slots of the images of those items, or null for every image
+	 */
+	public synchronized BitSet admissibleSlots(Collection<Long> item_ids)
+	{
+		if(item_ids == null)
+			return null;
+		BitSet admissible = new BitSet(training_library.size());
+		for(Long id : item_ids) {
+			BitSet slots = item_slots.get(id);
+			if(slots != null)
+				admissible.or(slots);
+		}
+		return admissible;
+	}
+
 	/*
 	 * Methods that resize a given image to certain size
 	 * The size is specified by the class variable max_side 
@@ -174,76 +1088,372 @@ public class ImageDetector {
 	public Mat resize(Mat src_img)
 	{
 		// scale down images
+		Imgproc.resize(src_img, src_img, resizedSize(src_img));
+		return src_img;
+	}
+
+	/*
+	 * Method that returns the size a given image is resized to
+	 */
+	private Size resizedSize(Mat src_img)
+	{
 		double h = src_img.size().height;
 		double w = src_img.size().width;
 		double multiplier = max_side/Math.max(h,w);
-		Size size= new Size(w*multiplier, h*multiplier);
-		Imgproc.resize(src_img, src_img, size);
-		return src_img;
+		return new Size(w*multiplier, h*multiplier);
 	}
 
 	/*
-	 * 
+	 * Method that detects a given image based on the whole training library
 	 */
-	public TrainingImage detectPhoto(String query_path){
-		List<Long> ids = new ArrayList<>();
-		for(TrainingImage img : training_library) {
-			if(!ids.contains(img.tourID()))
-				ids.add(img.tourID());
-		}
-		return detectPhoto(query_path, ids);
+	public synchronized TrainingImage detectPhoto(String query_path){
+		return detectPhoto(query_path, (BitSet) null);
+	}
+
+	/*
+	 * Method that detects a given image based on the images of the given tour items
+	 * @param query_path the path of the image to be detected
+	 * @param item_ids the list of qualified items, or null for every item
+	 * @return the best match image
+	 */
+	public synchronized TrainingImage detectPhoto(String query_path, List<Long> item_ids){
+		return detectPhoto(query_path, admissibleSlots(item_ids));
 	}
 
 	/*
 	 * Method that detects a given image based on the training library
+	 * Images outside the admissible slots are never matched against the query.
 	 * @param query_path the path of the image to be detected
-	 * @param item_ids the list of qualified items
+	 * @param admissible_slots the slots of the qualified images, from admissibleSlots(), or null for all images in memory
 	 * @return the best match image
 	 */
-	public TrainingImage detectPhoto(String query_path, List<Long> item_ids){
+	public synchronized TrainingImage detectPhoto(String query_path, BitSet admissible_slots){
+		long start = metrics.start();
+		long t = start;
 		Mat img = Imgcodecs.imread(query_path);
+		t = metrics.lap(DetectorMetrics.Stage.DECODE, t);
 		Mat resized_img = resize(img); // scale down the query image
 		TrainingImage query_image = new TrainingImage(query_path,0,resized_img);
+		t = metrics.lap(DetectorMetrics.Stage.RESIZE, t);
+		return detect(query_image, admissible_slots, start, t);
+	}
 
-		// get descriptors of the query image
-		// detect the matrix of key points of that image
-		Mat query_descriptors = imgDescriptor(query_image);
+	/*
+	 * Method that detects a camera frame based on the training library
+	 * Unlike detectPhoto, there is no image file to encode and decode: the frame is scaled down straight from memory.
+	 * Frames have no location, so the location filter doesn't apply to them.
+	 * @param frame the frame, e.g. the gray plane of a camera preview frame. It isn't modified.
+	 * @param admissible_slots the slots of the qualified images, from admissibleSlots(), or null for all images in memory
+	 * @return the best match image
+	 */
+	public synchronized TrainingImage detectFrame(Mat frame, BitSet admissible_slots){
+		long start = metrics.start();
+		TrainingImage query_image = frameQuery(frame);
+		long t = metrics.lap(DetectorMetrics.Stage.RESIZE, start);
+		return detect(query_image, admissible_slots, start, t);
+	}
 
-		// Match the descriptors of a query image
-		// to descriptors in the training collection.
-		MatOfDMatch matches= new MatOfDMatch();
-		dMatcher.match(query_descriptors, matches);
+	/*
+	 * Method that adds the evidence of a camera frame to the evidence of the previous frames,
+	 * and identifies the tour item shown once the evidence is conclusive.
+	 * Each item's evidence is the number of matches to its best image. While the accumulated result is ambiguous,
+	 * the top candidates are geometrically verified if setGeometricVerification() enabled it, and their inliers are the evidence instead: slower, but much
+	 * better at telling similar items apart. Frames have no location, so the location filter doesn't apply to them.
+	 * @param frame the frame, e.g. the gray plane of a camera preview frame. It isn't modified.
+	 * @param admissible_slots the slots of the qualified images, from admissibleSlots(), or null for all images in memory
+	 * @param accumulator the evidence of the previous frames, updated with this one's
+	 * @return the id of the accepted item, or -1 if the evidence isn't conclusive yet
+	 */
+	public synchronized long accumulateFrame(Mat frame, BitSet admissible_slots, TemporalAccumulator accumulator){
+		long start = metrics.start();
+		boolean verify = accumulator.isAmbiguous();
+		TrainingImage query_image = frameQuery(frame);
+		long t = metrics.lap(DetectorMetrics.Stage.RESIZE, start);
+
+		accumulator.beginFrame();
+		if(matchQuery(query_image, admissible_slots, t) >= min_good_matches){
+			t = metrics.start();
+			votes.count(match_result, training_library.size());
+			t = metrics.lap(DetectorMetrics.Stage.VOTE, t);
+			metrics.count(DetectorMetrics.Count.CANDIDATES, votes.candidates());
+
+			int n = 0;
+			if(verify && verify_candidates > 0 && query_image.keyPointCoordinates() != null){
+				if(candidate_slots.length < verify_candidates)
+					candidate_slots = new int[verify_candidates];
+				n = votes.top(verify_candidates, candidate_slots);
+				if(!haveKeyPoints(candidate_slots, n))
+					n = 0;
+			}
+			if(n > 0){
+				float[] query_points = query_image.keyPointCoordinates();
+				for(int i = 0; i < n; i++){
+					int slot = candidate_slots[i];
+					accumulator.add(slot_items[slot],
+							verifier.inliers(match_result, slot, query_points, training_library.get(slot).keyPointCoordinates()));
+				}
+				metrics.lap(DetectorMetrics.Stage.VERIFY, t);
+			}else{
+				for(int i = 0; i < votes.candidates(); i++){
+					int slot = votes.candidate(i);
+					accumulator.add(slot_items[slot], votes.votes(slot));
+				}
+			}
+		}
+		long item_id = accumulator.endFrame();
+
+		CURRENT_QUERY_IMAGE = query_image;
+		CURRENT_RESULT_IMAGE = null;
+
+		metrics.lap(DetectorMetrics.Stage.TOTAL, start);
+		return item_id;
+	}
+
+	/*
+	 * Method that starts tracking an item from the last query, with the key points of the query that matched the item
+	 * @param tracker the tracker to start
+	 * @param item_id the item, e.g. as identified by accumulateFrame
+	 * @return whether enough key points matched the item for tracking
+	 */
+	public synchronized boolean startTracking(KeyframeTracker tracker, long item_id){
+		TrainingImage query_image = CURRENT_QUERY_IMAGE;
+		float[] query_points = (query_image == null) ? null : query_image.keyPointCoordinates();
+		if(query_points == null){
+			tracker.stop();
+			return false;
+		}
+
+		float[] points = new float[2 * match_result.count];
+		int n = 0;
+		for(int i = 0; i < match_result.count; i++){
+			int slot = match_result.train_slot[i];
+			if(slot >= 0 && slot_items[slot] == item_id){
+				points[2 * n] = query_points[2 * i];
+				points[2 * n + 1] = query_points[2 * i + 1];
+				n++;
+			}
+		}
+		return tracker.start(query_image.image(), points, n, item_id);
+	}
+
+	/*
+	 * Warms up the detector for queries against the given items, e.g. as the visitor comes near them, so the first
+	 * real query there doesn't pay for it: reads back their evicted images, builds the location index, and runs a
+	 * synthetic query through every stage, so the matching code is compiled and the matcher's threads are started.
+	 * The synthetic query isn't recorded in the metrics, and doesn't change what the last query left behind.
+	 * Safe to call from any thread; meant for a background one.
+	 * @param item_ids ids of the items queries are expected to consider
+	 */
+	public void warmUp(Collection<Long> item_ids)
+	{
+		// textured noise, so key points are found and every stage has something to do
+		Mat noise = new Mat(max_side, max_side, CvType.CV_8UC1);
+		Core.randu(noise, 0, 256);
+		TrainingImage query_image = new TrainingImage();
+		query_image.setPathID("warm-up");
+		query_image.setImage(noise);
+
+		long start = System.currentTimeMillis();
+		synchronized(this) {
+			BitSet admissible_slots = admissibleSlots(item_ids);
+			if(location_index == null)
+				buildLocationIndex();
 
-		// filter good matches
-		List<DMatch> list_of_matches = matches.toList();
+			// keep the results of the last query for drawCurrentMatches and startTracking
+			MatchResult last_result = match_result;
+			TrainingImage last_query = CURRENT_QUERY_IMAGE;
+			TrainingImage last_result_image = CURRENT_RESULT_IMAGE;
+			boolean metrics_enabled = metrics.isEnabled();
+			match_result = new MatchResult();
+			metrics.setEnabled(false);
+			try {
+				// noise rarely leaves enough good matches, so vote on whatever it matched
+				matchQuery(query_image, admissible_slots, 0);
+				findBestMatch(match_result, query_image);
+			} finally {
+				metrics.setEnabled(metrics_enabled);
+				match_result = last_result;
+				CURRENT_QUERY_IMAGE = last_query;
+				CURRENT_RESULT_IMAGE = last_result_image;
+			}
+		}
+		noise.release();
+		Log.d(TAG, "warmed up for " + item_ids.size() + " items in " + (System.currentTimeMillis() - start) + " ms");
+	}
 
-		// filter out any items not in our list
-		list_of_matches = filterByItem(list_of_matches, item_ids);
+	/*
+	 * Method that scales a camera frame down into a new query image
+	 * @param frame the frame. It isn't modified.
+	 */
+	private TrainingImage frameQuery(Mat frame){
+		Mat resized_img = new Mat();
+		Imgproc.resize(frame, resized_img, resizedSize(frame)); // scale down into a new image, leaving the frame alone
+		TrainingImage query_image = new TrainingImage();
+		query_image.setPathID("camera frame");
+		query_image.setImage(resized_img);
+		return query_image;
+	}
 
-		// find the image that matches the most
-		TrainingImage bestMatch = findBestMatch(list_of_matches, query_image);
+	/*
+	 * Method that detects a scaled-down query image based on the training library
+	 * @param query_image the query image
+	 * @param admissible_slots the slots of the qualified images, or null for all images in memory
+	 * @param start the time the query started at, from the metrics
+	 * @param t the time detection starts at, from the metrics
+	 * @return the best match image
+	 */
+	private TrainingImage detect(TrainingImage query_image, BitSet admissible_slots, long start, long t){
+		// only vote with distinctive matches, and give up early if there are too few of them
+		TrainingImage bestMatch = null;
+		int good_matches = matchQuery(query_image, admissible_slots, t);
+		if(good_matches >= min_good_matches){
+			// find the image that matches the most
+			bestMatch = findBestMatch(match_result, query_image);
+		}else{
+			Log.i(TAG, "Only " + good_matches + " good matches for the query image");
+		}
 
 		// update variables for drawCurrentMatches method
 		CURRENT_QUERY_IMAGE = query_image;
 		CURRENT_RESULT_IMAGE = bestMatch;
-		CURRENT_GOOD_MATCHES = getCurrentGoodMatches(list_of_matches, bestMatch);
 
+		metrics.lap(DetectorMetrics.Stage.TOTAL, start);
 		return bestMatch;
 	}
 
 	/*
-	 * Filters matches to only include images from the given tour item ids
-	 * @param matches list of matches to filter
-	 * @param item_ids list of items we want included in the results
-	 * @return the filtered matches
+	 * Method that matches a scaled-down query image against the training library,
+	 * leaving only its distinctive matches in match_result
+	 * @param query_image the query image
+	 * @param admissible_slots the slots of the qualified images, or null for all images in memory
+	 * @param t the time detection starts at, from the metrics
+	 * @return the number of distinctive matches
+	 */
+	private int matchQuery(TrainingImage query_image, BitSet admissible_slots, long t){
+		// images evicted to save memory must be read back before they can be matched, unless the query is unfiltered
+		useAdmissible(admissible_slots);
+
+		// get descriptors of the query image
+		// detect the matrix of key points of that image
+		Mat query_descriptors = queryDescriptors(query_image, t);
+
+		// Match the descriptors of a query image
+		// to descriptors in the training collection,
+		// or only to those of the shortlisted images in large libraries.
+		t = metrics.start();
+		MatchResult matches = matchDescriptors(query_descriptors, admissible_slots);
+		t = metrics.lap(DetectorMetrics.Stage.MATCH, t);
+		if(metrics.isEnabled())
+			metrics.count(DetectorMetrics.Count.MATCHES, matchCount(matches));
+
+		int good_matches = filterByDistance(matches);
+		metrics.lap(DetectorMetrics.Stage.FILTER, t);
+		metrics.count(DetectorMetrics.Count.GOOD_MATCHES, good_matches);
+		return good_matches;
+	}
+
+	/*
+	 * Method that returns the descriptors of a query image, like imgDescriptor, timing detection and extraction separately
+	 * @param query_image the query image
+	 * @param start the time detection starts at, from the metrics
+	 */
+	private Mat queryDescriptors(TrainingImage query_image, long start)
+	{
+		Mat img = query_image.image();
+		Mat query_descriptors = new Mat();
+		MatOfKeyPoint query_key_points = new MatOfKeyPoint();
+		fDetector.get().detect(img, query_key_points);
+		long t = metrics.lap(DetectorMetrics.Stage.DETECT, start);
+		metrics.count(DetectorMetrics.Count.KEY_POINTS, query_key_points.rows());
+
+		dExtractor.get().compute(img, query_key_points, query_descriptors);
+		metrics.lap(DetectorMetrics.Stage.COMPUTE, t);
+		query_image.setKeyPoints(query_key_points);
+		query_image.setDescriptors(query_descriptors);
+		return query_descriptors;
+	}
+
+	/*
+	 * @return the number of query descriptors with a nearest neighbour
+	 */
+	private static int matchCount(MatchResult matches)
+	{
+		int count = 0;
+		for(int i = 0; i < matches.count; ++i) {
+			if(matches.train_slot[i] >= 0)
+				++count;
+		}
+		return count;
+	}
+
+	/*
+	 * Matches query descriptors against the training library
+	 * @param query_descriptors descriptors of the query image
+	 * @param admissible_slots the slots to match against, or null for all slots
+	 * @return the nearest neighbours of each query descriptor. The result is reused by the next query.
+	 */
+	private MatchResult matchDescriptors(Mat query_descriptors, BitSet admissible_slots)
+	{
+		int rows = query_descriptors.rows();
+		if(rows == 0) {
+			match_result.reset(0);
+			return match_result;
+		}
+		int bytes_per_row = (int) (query_descriptors.cols() * query_descriptors.elemSize());
+		packed_query = HammingMatcher.pack(descriptorBytes(query_descriptors), rows, bytes_per_row, packed_query);
+		matcher.match(packed_query, rows, match_result, shortlistSlots(rows, bytes_per_row, admissible_slots));
+		return match_result;
+	}
+
+	/*
+	 * Shortlists the training images most similar to the packed query, by TF-IDF scoring of their visual words
+	 * @param admissible_slots the slots that may be shortlisted, or null for all slots
+	 * @return the shortlisted slots, or the admissible slots if shortlisting isn't used for this query
 	 */
-	private List<DMatch> filterByItem(List<DMatch> matches, List<Long> item_ids) {
-		List<DMatch> filtered_matches = new ArrayList<>();
-		for(DMatch match : matches) {
-			if(item_ids.contains(training_library.get(match.imgIdx).tourID()))
-				filtered_matches.add(match);
+	private BitSet shortlistSlots(int rows, int bytes_per_row, BitSet admissible_slots)
+	{
+		if(inverted_index == null || inverted_index.size() < min_shortlist_library
+				|| HammingMatcher.wordsPerRow(bytes_per_row) != vocabulary.words())
+			return admissible_slots;
+
+		query_words = vocabulary.quantize(packed_query, rows, query_words);
+		if(inverted_index.shortlist(query_words, rows, shortlist_size, admissible_slots, shortlist) == 0)
+			return admissible_slots;
+		return shortlist;
+	}
+
+	/*
+	 * Filters out matches that aren't distinctive: those that fail the ratio test against the second-nearest
+	 * neighbour, or are too far from their nearest neighbour. Filtered matches are marked as having no neighbour.
+	 * @param matches matches to filter
+	 * @return the number of matches left
+	 */
+	private int filterByDistance(MatchResult matches) {
+		int good = 0;
+		for(int i = 0; i < matches.count; ++i) {
+			if(matches.train_slot[i] < 0)
+				continue;
+			int distance = matches.distance[i];
+			int second = matches.second_distance[i];
+			if(distance > max_match_distance
+					|| (second != Integer.MAX_VALUE && distance >= match_ratio * second)) {
+				matches.train_slot[i] = -1;
+			} else {
+				++good;
+			}
 		}
-		return filtered_matches;
+		return good;
+	}
+
+	/*
+	 * Sets the thresholds used for filtering matches before voting
+	 * @param ratio maximum ratio of the nearest to the second-nearest distance; values above 1 disable the ratio test
+	 * @param max_distance maximum Hamming distance of a match
+	 */
+	public synchronized void setMatchFilter(double ratio, int max_distance)
+	{
+		match_ratio = ratio;
+		max_match_distance = max_distance;
 	}
 
 	/*
@@ -252,16 +1462,16 @@ public class ImageDetector {
 	 * @param bestMatch the image that has the highest number of matches
 	 * @return a MatOfDMatch of the matches of the best match image
 	 */
-	private MatOfDMatch getCurrentGoodMatches(List<DMatch> good_matches,TrainingImage bestMatch)
+	private MatOfDMatch getCurrentGoodMatches(MatchResult good_matches,TrainingImage bestMatch)
 	{
 		List<DMatch> matches_of_bestMatch = new ArrayList<DMatch>();
 		// loop to filter matches of train images, which are not the bestMatch image
-		for(DMatch aMatch: good_matches){
-			TrainingImage trainImg = training_library.get(aMatch.imgIdx);
+		for(int i = 0; i < good_matches.count; ++i){
+			int slot = good_matches.train_slot[i];
 			// Check if the match result is the bestMatch image
-			if (trainImg == bestMatch)
+			if (slot >= 0 && training_library.get(slot) == bestMatch)
 			{
-				matches_of_bestMatch.add(aMatch);
+				matches_of_bestMatch.add(new DMatch(i, good_matches.train_row[i], slot, good_matches.distance[i]));
 			}
 		}
 		MatOfDMatch result = new MatOfDMatch();
@@ -274,19 +1484,35 @@ public class ImageDetector {
 	 * @param n the number of matches to be visualized in the image
 	 * @return the image
 	 */
-	public Mat drawCurrentMatches(int n)
+	public synchronized Mat drawCurrentMatches(int n)
 	{
 		Mat img1 = CURRENT_QUERY_IMAGE.image();
 		MatOfKeyPoint kp1= CURRENT_QUERY_IMAGE.keyPoints();
-		Mat img2 = CURRENT_RESULT_IMAGE.image();
-		MatOfKeyPoint kp2= CURRENT_RESULT_IMAGE.keyPoints();
+		// training images only keep their descriptors and their key points' coordinates, so read the image back
+		Mat img2 = resize(Imgcodecs.imread(CURRENT_RESULT_IMAGE.pathID()));
+		MatOfKeyPoint kp2 = keyPoints(CURRENT_RESULT_IMAGE.keyPointCoordinates());
 		Mat result = new Mat();
 
 		Features2d.drawMatches(img1, kp1, img2, kp2,
-				sortedKMatches(CURRENT_GOOD_MATCHES,0,n), result);
+				sortedKMatches(getCurrentGoodMatches(match_result, CURRENT_RESULT_IMAGE),0,n), result);
+		img2.release();
+		kp2.release();
 		return result;
 	}
 
+	/*
+	 * Creates key points at the given coordinates, for drawing
+	 * @param coordinates x and y of each key point, or null for none
+	 */
+	private static MatOfKeyPoint keyPoints(float[] coordinates)
+	{
+		int n = coordinates != null ? coordinates.length / 2 : 0;
+		KeyPoint[] points = new KeyPoint[n];
+		for(int i = 0; i < n; i++)
+			points[i] = new KeyPoint(coordinates[2 * i], coordinates[2 * i + 1], 1);
+		return new MatOfKeyPoint(points);
+	}
+
 	/*
 	 * Method that sorts and returns submat of a MatOfDMatch
 	 * @param the mat of matches
@@ -322,7 +1548,7 @@ public class ImageDetector {
 		Mat imgDescriptor = new Mat();
 		// detect the matrix of key points of that image
 		MatOfKeyPoint imgKeyPoints = new MatOfKeyPoint();
-		fDetector.detect(img, imgKeyPoints);
+		fDetector.get().detect(img, imgKeyPoints);
 
 		Log.i(TAG, "imgKeyPoints size:  "+ imgKeyPoints.size());
 
@@ -345,9 +1571,9 @@ public class ImageDetector {
 		Mat imgDescriptor_r = new Mat();
 		Mat imgDescriptor_g = new Mat();
 		Mat imgDescriptor_b = new Mat();
-		dExtractor.compute(img_r,imgKeyPoints, imgDescriptor_r);
-		dExtractor.compute(img_g,imgKeyPoints, imgDescriptor_g);
-		dExtractor.compute(img_b,imgKeyPoints, imgDescriptor_b);
+		dExtractor.get().compute(img_r,imgKeyPoints, imgDescriptor_r);
+		dExtractor.get().compute(img_g,imgKeyPoints, imgDescriptor_g);
+		dExtractor.get().compute(img_b,imgKeyPoints, imgDescriptor_b);
 
 		Mat imgDescriptor_x3 = new Mat();
 		// Concatenate the R, G, B descriptors
@@ -380,10 +1606,10 @@ public class ImageDetector {
 		Mat imgDescriptor = new Mat();
 		// detect the matrix of key points of that image
 		MatOfKeyPoint imgKeyPoints = new MatOfKeyPoint();
-		fDetector.detect(img, imgKeyPoints);
+		fDetector.get().detect(img, imgKeyPoints);
 
 		// compute the descriptor from those key points
-		dExtractor.compute(img,imgKeyPoints, imgDescriptor);
+		dExtractor.get().compute(img,imgKeyPoints, imgDescriptor);
 		train_img.setKeyPoints(imgKeyPoints);
 		train_img.setDescriptors(imgDescriptor);
 		return imgDescriptor;
@@ -399,109 +1625,333 @@ public class ImageDetector {
 
 		return m;
 	}
-	
+
+	/*
+	 * Creates a Mat holding the descriptors read from a binary descriptor file
+	 */
+	public Mat loadImageDescriptors(DescriptorFile data) {
+		Mat m = new Mat(data.rows(), data.cols(), data.type());
+		if(data.bytes().length > 0)
+			m.put(0, 0, data.bytes());
+		return m;
+	}
+
 	/*
-	 * Loads image descriptors from the given file
+	 * Loads image descriptors from the given file.
+	 * Legacy YAML files are converted to the binary format the first time they're loaded.
+	 * @return the descriptors, or null if the file couldn't be read
 	 */
 	public Mat loadImageDescriptors(File file) {
+		if(file.getName().endsWith(DescriptorFile.YAML_EXTENSION))
+			return migrateImageDescriptors(file);
+
 		try {
 			Log.d(TAG, "Attempting to load image descriptors from " + file.getName());
-			Yaml yaml = new Yaml();
+			return loadImageDescriptors(DescriptorFile.read(file));
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+			return null;
+		}
+	}
 
-			Map<String, Object> data = (Map<String, Object>) yaml.load(new FileReader(file));
-			return loadImageDescriptors(data);
+	/*
+	 * Loads image descriptors from a legacy YAML file, and replaces it with a binary descriptor file.
+	 */
+	private Mat migrateImageDescriptors(File yaml_file) {
+		Mat m;
+		try {
+			Log.d(TAG, "Attempting to load legacy image descriptors from " + yaml_file.getName());
+			Yaml yaml = new Yaml();
+			FileReader reader = new FileReader(yaml_file);
+			try {
+				m = loadImageDescriptors((Map<String, Object>) yaml.load(reader));
+			} finally {
+				reader.close();
+			}
 		} catch (IOException e) {
 			Log.e(TAG, e.toString());
 			return null;
 		}
+
+		String path = yaml_file.getPath();
+		File binary_file = new File(path.substring(0, path.length() - DescriptorFile.YAML_EXTENSION.length()) + DescriptorFile.EXTENSION);
+		try {
+			toDescriptorFile(m).write(binary_file);
+			yaml_file.delete();
+			Log.i(TAG, "migrated '" + yaml_file.getName() + "' to '" + binary_file.getName() + "'");
+		} catch (IOException e) {
+			Log.e(TAG, "could not migrate '" + yaml_file + "': " + e.toString());
+		}
+		return m;
+	}
+
+	/*
+	 * Copies a descriptor Mat into a DescriptorFile so it can be written to disk
+	 */
+	private static DescriptorFile toDescriptorFile(Mat m) {
+		return toDescriptorFile(m, null);
+	}
+
+	/*
+	 * Copies a descriptor Mat and the coordinates of its key points (if known) into a DescriptorFile
+	 */
+	private static DescriptorFile toDescriptorFile(Mat m, float[] key_point_coordinates) {
+		if(key_point_coordinates != null && key_point_coordinates.length != 2 * m.rows())
+			key_point_coordinates = null;
+		return new DescriptorFile(m.rows(), m.cols(), m.type(), descriptorBytes(m), key_point_coordinates);
+	}
+
+	/*
+	 * Copies the contents of a descriptor Mat into a byte array
+	 */
+	private static byte[] descriptorBytes(Mat m) {
+		byte[] bytes = new byte[(int) (m.total() * m.elemSize())];
+		if(bytes.length > 0)
+			m.get(0, 0, bytes);
+		return bytes;
 	}
 	
 	/*
 	 * Saves the image descriptors to disk so they can be loaded up later (or exported).
+	 * An image's descriptors never change once computed, so images that already have a descriptor file are skipped.
 	 */
-	public void saveImageDescriptors() {
+	public synchronized void saveImageDescriptors() {
 		for(TrainingImage image : training_library) {
-			Log.d(TAG, "saving " + image.pathID() + " to Map.");
-			Map<String,Object> descriptor_data = new HashMap<>();
-			Mat m = image.descriptors();
-			byte[] bytes = new byte[(int) (m.total() * m.elemSize())];
-			m.get(0, 0, bytes);
-			descriptor_data.put("type", m.type());
-			descriptor_data.put("columns", m.cols());
-			descriptor_data.put("rows", m.rows());
-			descriptor_data.put("bytes", bytes);
+			// evicted images were written before they were evicted
+			if(image != null && image.descriptors() != null)
+				writeDescriptorFile(image);
+		}
+	}
 
-			Yaml yaml = new Yaml();
+	/*
+	 * Loads the tour's packed descriptor index, so that images added afterwards can use its descriptors
+	 * instead of opening one descriptor file each.
+	 * The whole index is copied into a single matrix; each image gets a row range of it rather than its own copy.
+	 * If the index can't be loaded, images are loaded from their own descriptor files instead, and the index is
+	 * rewritten by the next saveDescriptorPack().
+	 * @param file the packed index file
+	 * @return whether the index was loaded
+	 */
+	public synchronized boolean loadDescriptorPack(File file) {
+		for(Mat block : packed_descriptors.values())
+			block.release();
+		packed_descriptors.clear();
+		packed_points.clear();
+		packed_items.clear();
+		pack_dirty = true;
+
+		DescriptorPack pack;
+		try {
+			pack = DescriptorPack.read(file);
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+			return false;
+		}
+
+		Map<String,Mat> blocks = new HashMap<>();
+		Mat all = null;
+		try {
+			all = new Mat(pack.totalRows(), pack.cols(), pack.type());
+			if(pack.totalRows() > 0)
+				all.put(0, 0, pack.bytes());
+			for(DescriptorPack.Entry entry : pack.entries())
+				blocks.put(entry.name, all.rowRange(entry.row, entry.row + entry.rows));
+		} catch (RuntimeException e) {
+			// e.g. a CvException from a block that doesn't fit the matrix; fall back to the descriptor files
+			Log.e(TAG, "could not load '" + file + "': " + e.toString());
+			for(Mat block : blocks.values())
+				block.release();
+			return false;
+		} finally {
+			// the blocks keep the matrix alive until the last of them is freed
+			if(all != null)
+				all.release();
+		}
+
+		packed_descriptors.putAll(blocks);
+		for(DescriptorPack.Entry entry : pack.entries()) {
+			packed_items.put(entry.name, entry.item);
+			float[] points = pack.points(entry);
+			if(points != null)
+				packed_points.put(entry.name, points);
+		}
+		pack_dirty = false;
+		Log.i(TAG, "loaded " + pack.entries().size() + " images from '" + file + "'");
+		return true;
+	}
+
+	/*
+	 * Writes the descriptors of every image in the library to a packed index.
+	 * The index is only rewritten if it's out of date.
+	 * @param file the packed index file
+	 * @param item_ids ids of the tour's items, in tour order. The table of contents records each image's position in this list.
+	 */
+	public synchronized void saveDescriptorPack(File file, List<Long> item_ids) {
+		if(!pack_dirty && file.exists() && packed_items.size() == library_slots.size()) {
+			boolean up_to_date = true;
+			for(TrainingImage image : training_library) {
+				if(image == null)
+					continue;
+				Integer item = packed_items.get(image.name());
+				if(item == null || item != item_ids.indexOf(image.tourID())) {
+					up_to_date = false;
+					break;
+				}
+			}
+			if(up_to_date)
+				return;
+		}
+
+		DescriptorPack pack = null;
+		for(TrainingImage image : training_library) {
+			if(image == null)
+				continue;
+			DescriptorFile data;
+			if(image.descriptors() != null)
+				data = toDescriptorFile(image.descriptors(), image.keyPointCoordinates());
+			else if(pager.isEvicted(library_slots.get(image.pathID())))
+				data = readDescriptorFile(image);
+			else
+				continue;
+			if(data == null)
+				continue;
+			if(pack == null)
+				pack = new DescriptorPack(data.cols(), data.type());
+			if(data.rows() > 0 && (data.cols() != pack.cols() || data.type() != pack.type())) {
+				Log.w(TAG, "descriptors of " + image.pathID() + " don't match the rest of the library; not packing them");
+				continue;
+			}
+			pack.add(image.name(), item_ids.indexOf(image.tourID()), data.rows(), data.bytes(), data.points());
+		}
+		if(pack == null)
+			return;
+
+		try {
+			pack.write(file);
+			pack_dirty = false;
+			packed_items.clear();
+			packed_points.clear();
+			for(DescriptorPack.Entry entry : pack.entries()) {
+				packed_items.put(entry.name, entry.item);
+				float[] points = pack.points(entry);
+				if(points != null)
+					packed_points.put(entry.name, points);
+			}
+			Log.d(TAG, "saved '" + file + "'");
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+		}
+	}
+
+	/*
+	 * Loads the tour's visual vocabulary and inverted file, if they've been saved.
+	 * Images added afterwards use their stored bags of words instead of being quantised again.
+	 * @param directory the tour's directory
+	 */
+	public synchronized void loadBagOfWords(File directory) {
+		File vocabulary_file = new File(directory, Vocabulary.FILENAME);
+		if(!vocabulary_file.exists())
+			return;
+		try {
+			vocabulary = Vocabulary.read(vocabulary_file);
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+			return;
+		}
+		vocabulary_dirty = false;
+
+		File inverted_file = new File(directory, InvertedIndex.FILENAME);
+		stored_bags.clear();
+		bags_dirty = true;
+		if(inverted_file.exists()) {
 			try {
-				File file = new File(image.pathID() + ".descriptors.yaml");
-				FileWriter writer = new FileWriter(file);
-				yaml.dump(descriptor_data, writer);
-				writer.close();
-				Log.d(TAG, "saved '" + file + "'");
+				stored_bags.putAll(InvertedIndex.read(inverted_file, vocabulary));
+				bags_dirty = false;
 			} catch (IOException e) {
 				Log.e(TAG, e.toString());
 			}
 		}
+
+		inverted_index = new InvertedIndex(vocabulary.size());
+		for(int slot = 0; slot < training_library.size(); ++slot) {
+			if(training_library.get(slot) != null)
+				indexWords(slot, training_library.get(slot));
+		}
+		Log.i(TAG, "loaded a vocabulary of " + vocabulary.size() + " words and " + stored_bags.size() + " bags of words");
+	}
+
+	/*
+	 * Saves the visual vocabulary and the inverted file next to the tour file, if they're out of date
+	 * @param directory the tour's directory
+	 */
+	public synchronized void saveBagOfWords(File directory) {
+		if(vocabulary == null)
+			return;
+		try {
+			if(vocabulary_dirty) {
+				vocabulary.write(new File(directory, Vocabulary.FILENAME));
+				vocabulary_dirty = false;
+			}
+			if(bags_dirty) {
+				List<String> names = new ArrayList<>(training_library.size());
+				for(TrainingImage image : training_library)
+					names.add(image != null ? image.name() : null);
+				inverted_index.write(new File(directory, InvertedIndex.FILENAME), vocabulary, names);
+				bags_dirty = false;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+		}
 	}
 
 	/*
 	 * Method that finds the best match from a list of matches
+	 * Votes are counted per training slot in reusable buffers, so this doesn't allocate per match.
 	 */
-	private TrainingImage findBestMatch(List<DMatch> good_matches, TrainingImage query_image)
+	private TrainingImage findBestMatch(MatchResult good_matches, TrainingImage query_image)
 	{
-		HashMap<TrainingImage,Integer> hm= new HashMap<TrainingImage, Integer>();
 		// count the images matched
-		for(DMatch aMatch: good_matches){
-			TrainingImage trainImg = training_library.get(aMatch.imgIdx);
-			if(hm.get(trainImg)==null){
-				hm.put(trainImg,1);
-			}else{
-				hm.put(trainImg, hm.get(trainImg)+1);
-			}
-		}
+		long t = metrics.start();
+		votes.count(good_matches, training_library.size());
+		t = metrics.lap(DetectorMetrics.Stage.VOTE, t);
+		metrics.count(DetectorMetrics.Count.CANDIDATES, votes.candidates());
 
 		// location filter
-		HashMap<TrainingImage,Integer> filtered_hm = locationFilter(hm,query_image);
-		hm = filtered_hm;
+		locationFilter(votes, query_image);
+		t = metrics.lap(DetectorMetrics.Stage.LOCATION, t);
 
-		// search for the image that matches the largest number of descriptors.
-		TrainingImage bestMatch= null;
-		TrainingImage secondBestMatch= null;
-
-		for(TrainingImage trainImg: hm.keySet()){
-			if(bestMatch == null){
-				bestMatch= trainImg;				
-			}else{
-				if(hm.get(trainImg)> hm.get(bestMatch)){
-					secondBestMatch = bestMatch;
-					bestMatch= trainImg;
-				}else{
-					if (secondBestMatch == null){
-						secondBestMatch = trainImg;
-					}else{
-						if(trainImg.tourID() != bestMatch.tourID() 
-								&& hm.get(trainImg)> hm.get(secondBestMatch)){
-							secondBestMatch = trainImg;
-						}
-					}
-				}
+		// geometric verification of the top candidates, if their key points are known
+		if(verify_candidates > 0 && query_image.keyPointCoordinates() != null){
+			if(candidate_slots.length < verify_candidates)
+				candidate_slots = new int[verify_candidates];
+			int n = votes.top(verify_candidates, candidate_slots);
+			if(haveKeyPoints(candidate_slots, n)) {
+				TrainingImage verified = verifyCandidates(candidate_slots, n, good_matches, query_image);
+				metrics.lap(DetectorMetrics.Stage.VERIFY, t);
+				return verified;
 			}
 		}
 
-		// print result
-		for(TrainingImage trainImg: hm.keySet()){
-			Log.i(TAG, "Matched img result:  "+ trainImg.pathID() +
-					", numOfMatches: "+hm.get(trainImg));
-		}
-		
-		if (secondBestMatch == null){
-			return bestMatch;
+		// search for the image that matches the largest number of descriptors,
+		// and the runner-up among the images of other items
+		votes.rank(slot_items);
+		int best_slot = votes.bestSlot();
+		int second_slot = votes.secondSlot();
+		if(best_slot < 0)
+			return null;
+
+		int best_votes = votes.votes(best_slot);
+		Log.i(TAG, "Matched img result:  "+ training_library.get(best_slot).pathID() +
+				", numOfMatches: "+best_votes+", runner-up: "+votes.votes(second_slot));
+
+		if (second_slot < 0){
+			return training_library.get(best_slot);
 		}
 		else{ 
 			// 2nd-best filter
-			int diff = hm.get(bestMatch)-hm.get(secondBestMatch) ;
-			if ( diff * diff > filter_ratio * hm.get(bestMatch)){
-				return bestMatch;
+			int diff = best_votes - votes.votes(second_slot);
+			if ( diff * diff > filter_ratio * best_votes){
+				return training_library.get(best_slot);
 			}
 			else{
 				Log.i(TAG, "Found no best match for the query image!");
@@ -511,28 +1961,114 @@ public class ImageDetector {
 	}
 
 	/*
-	 * Method that filters the map of matches by their locations
-	 * @param hm the map of match images
+	 * @return whether the key points of every given image are known
+	 */
+	private boolean haveKeyPoints(int[] slots, int n)
+	{
+		for(int i = 0; i < n; i++){
+			TrainingImage image = training_library.get(slots[i]);
+			float[] points = image.keyPointCoordinates();
+			if(points == null || points.length != 2 * image.descriptors().rows())
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Method that ranks candidates by the number of their matches consistent with a homography (RANSAC inliers)
+	 * Stops early once the best candidate has clearly more inliers than any remaining candidate could have.
+	 * @param slots the slots of the images to verify, in decreasing order of matches
+	 * @param n the number of slots
+	 * @param good_matches the matches of the query image
+	 * @param query_image the query image, with its key points
+	 * @return the image with the most inliers, or null if no image wins clearly
+	 */
+	private TrainingImage verifyCandidates(int[] slots, int n, MatchResult good_matches, TrainingImage query_image)
+	{
+		float[] query_points = query_image.keyPointCoordinates();
+		TrainingImage bestMatch = null;
+		int best_inliers = 0;
+		int second_inliers = 0;
+
+		for(int i = 0; i < n; i++){
+			int slot = slots[i];
+			TrainingImage trainImg = training_library.get(slot);
+			// a candidate can't have more inliers than matches
+			if(best_inliers >= min_inliers && best_inliers > inlier_ratio * votes.votes(slot))
+				break;
+
+			int inliers = verifier.inliers(good_matches, slot, query_points, trainImg.keyPointCoordinates());
+			Log.i(TAG, "Verified img result:  "+ trainImg.pathID() +
+					", numOfMatches: "+votes.votes(slot)+", inliers: "+inliers);
+
+			if(bestMatch == null || inliers > best_inliers){
+				if(bestMatch != null && bestMatch.tourID() != trainImg.tourID())
+					second_inliers = Math.max(second_inliers, best_inliers);
+				bestMatch = trainImg;
+				best_inliers = inliers;
+			}else if(trainImg.tourID() != bestMatch.tourID() && inliers > second_inliers){
+				second_inliers = inliers;
+			}
+		}
+
+		if(bestMatch == null || best_inliers < min_inliers || second_inliers * inlier_ratio >= best_inliers){
+			Log.i(TAG, "Found no verified match for the query image!");
+			return null;
+		}
+		return bestMatch;
+	}
+
+	/*
+	 * Method that discards the votes of images taken too far from the query image
+	 * Images whose location is unknown are kept. The nearby images are looked up in the location index once per query,
+	 * rather than measuring the distance to every candidate.
+	 * @param votes the votes of the matched images
 	 * @param query_image 
-	 * @return the map of images within the location bound
 	 */
-	public HashMap<TrainingImage,Integer> locationFilter(HashMap<TrainingImage,Integer> hm, TrainingImage query_image)
+	private void locationFilter(VoteCounter votes, TrainingImage query_image)
 	{
 		Location query_location = query_image.location();
 		if(query_location == null){
 			Log.i(TAG, "Image's location is not available");
-			return hm;
-		}else{
-			HashMap<TrainingImage,Integer> new_hm = new HashMap<TrainingImage,Integer>();
-			for(TrainingImage trainImg: hm.keySet()){
-				double distance = query_location.distanceTo(trainImg.location());
-				if(distance < distance_bound){
-					int count = hm.get(trainImg);
-					new_hm.put(trainImg,count);
-				}
-			}
-			return new_hm;
+			return;
+		}
+		if(location_index == null)
+			buildLocationIndex();
+		if(location_index.size() == 0)
+			return;
+
+		nearby_slots.clear();
+		location_index.within(query_location.getLatitude(), query_location.getLongitude(), distance_bound, nearby_slots);
+		for(int i = 0; i < votes.candidates(); i++){
+			int slot = votes.candidate(i);
+			if(located_slots.get(slot) && !nearby_slots.get(slot))
+				votes.discard(slot);
+		}
+	}
+
+	/*
+	 * Method that indexes the locations of the training images, by slot
+	 */
+	private void buildLocationIndex()
+	{
+		int n = training_library.size();
+		int[] slots = new int[n];
+		double[] latitudes = new double[n];
+		double[] longitudes = new double[n];
+		located_slots.clear();
+		int located = 0;
+		for(int slot = 0; slot < n; slot++){
+			TrainingImage image = training_library.get(slot);
+			Location location = (image == null) ? null : image.location();
+			if(location == null)
+				continue;
+			slots[located] = slot;
+			latitudes[located] = location.getLatitude();
+			longitudes[located] = location.getLongitude();
+			located_slots.set(slot);
+			located++;
 		}
+		location_index = new SpatialIndex(slots, latitudes, longitudes, located);
 	}
 
 	/*
@@ -542,7 +2078,7 @@ public class ImageDetector {
 	public void drawFeatures(Mat rgba){
 		MatOfKeyPoint keyPoints = new MatOfKeyPoint();
 		Imgproc.cvtColor(rgba, rgba, Imgproc.COLOR_RGBA2RGB);
-		fDetector.detect(rgba, keyPoints);
+		fDetector.get().detect(rgba, keyPoints);
 		Features2d.drawKeypoints(rgba,keyPoints,rgba);
 		Imgproc.cvtColor(rgba, rgba, Imgproc.COLOR_RGB2RGBA);
 	}
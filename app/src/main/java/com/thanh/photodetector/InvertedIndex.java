@@ -0,0 +1,395 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Inverted file over the visual words of a vocabulary, used to shortlist the training images most similar to a query
+ * before matching descriptors exactly.
+ *
+ * Each image is a bag of visual words. Images are scored against a query by TF-IDF: the cosine similarity of their
+ * word histograms, with each word weighted by how rare it is across the library. Scoring only visits the postings of
+ * words that occur in the query.
+ *
+ * Images are stored by slot, matching the slots of the HammingMatcher. On disk, the bags are keyed by image filename
+ * instead, since slots aren't stable from one run to the next. Layout (big-endian): magic, version, id of the
+ * vocabulary the bags were quantised with, number of images, then for each image its filename, number of distinct
+ * words, and (word, count) pairs.
+ */
+public class InvertedIndex {
+	// Name of the inverted file in a tour's directory
+	public static final String FILENAME = "inverted.idx";
+
+	private static final int MAGIC = 0x4F445349;    // "ODSI"
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/*
+	 * Histogram of the visual words in one image: distinct words and how often each occurs.
+	 */
+	public static class Bag {
+		public final int[] words;
+		public final int[] counts;
+
+		public Bag(int[] words, int[] counts) {
+			this.words = words;
+			this.counts = counts;
+		}
+
+		/*
+		 * Builds the histogram of a list of visual words
+		 * @param words visual word of each descriptor
+		 * @param count number of descriptors
+		 * @param vocabulary_size number of words in the vocabulary
+		 */
+		public static Bag of(int[] words, int count, int vocabulary_size) {
+			int[] histogram = new int[vocabulary_size];
+			int distinct = 0;
+			for(int i = 0; i < count; ++i) {
+				if(histogram[words[i]]++ == 0)
+					++distinct;
+			}
+			int[] bag_words = new int[distinct];
+			int[] bag_counts = new int[distinct];
+			int n = 0;
+			for(int word = 0; word < vocabulary_size; ++word) {
+				if(histogram[word] > 0) {
+					bag_words[n] = word;
+					bag_counts[n++] = histogram[word];
+				}
+			}
+			return new Bag(bag_words, bag_counts);
+		}
+
+		/*
+		 * @return the total number of descriptors in the bag
+		 */
+		public int total() {
+			int total = 0;
+			for(int count : counts)
+				total += count;
+			return total;
+		}
+	}
+
+	private final int vocabulary_size;
+	private int[][] posting_slots;     // slots containing each word
+	private int[][] posting_counts;    // occurrences of each word in those slots
+	private int[] posting_length;
+	private Bag[] bags = new Bag[0];   // bag of each slot, or null
+	private int images;
+
+	// Per-slot norms of the weighted histograms, recomputed after images are added
+	private float[] norms = new float[0];
+	private boolean norms_dirty;
+
+	// Buffers reused from one query to the next
+	private float[] scores = new float[0];
+	private int[] query_histogram;
+
+	/*
+	 * @param vocabulary_size number of words in the vocabulary the bags are quantised with
+	 */
+	public InvertedIndex(int vocabulary_size) {
+		this.vocabulary_size = vocabulary_size;
+		posting_slots = new int[vocabulary_size][];
+		posting_counts = new int[vocabulary_size][];
+		posting_length = new int[vocabulary_size];
+		query_histogram = new int[vocabulary_size];
+	}
+
+	/*
+	 * @return the number of images in the index
+	 */
+	public int size() {
+		return images;
+	}
+
+	/*
+	 * @return the bag of words stored for a slot, or null if there is none
+	 */
+	public Bag bag(int slot) {
+		return slot < bags.length ? bags[slot] : null;
+	}
+
+	/*
+	 * Adds an image to the index
+	 * @param slot the image's slot. Each slot may only be added once.
+	 * @param bag the image's visual words
+	 */
+	public void add(int slot, Bag bag) {
+		if(slot >= bags.length)
+			bags = Arrays.copyOf(bags, Math.max(slot + 1, bags.length * 2));
+		if(bags[slot] != null)
+			throw new IllegalArgumentException("slot " + slot + " is already in the index");
+		bags[slot] = bag;
+		++images;
+
+		for(int i = 0; i < bag.words.length; ++i) {
+			int word = bag.words[i];
+			int length = posting_length[word];
+			if(posting_slots[word] == null) {
+				posting_slots[word] = new int[4];
+				posting_counts[word] = new int[4];
+			} else if(length == posting_slots[word].length) {
+				posting_slots[word] = Arrays.copyOf(posting_slots[word], length * 2);
+				posting_counts[word] = Arrays.copyOf(posting_counts[word], length * 2);
+			}
+			posting_slots[word][length] = slot;
+			posting_counts[word][length] = bag.counts[i];
+			posting_length[word] = length + 1;
+		}
+		norms_dirty = true;
+	}
+
+	/*
+	 * Removes an image from the index. Costs time proportional to the length of the postings of the image's words.
+	 * @param slot the image's slot
+	 * @return whether the slot was in the index
+	 */
+	public boolean remove(int slot) {
+		Bag bag = bag(slot);
+		if(bag == null)
+			return false;
+		bags[slot] = null;
+		--images;
+
+		for(int word : bag.words) {
+			int[] slots = posting_slots[word];
+			int length = posting_length[word];
+			for(int p = 0; p < length; ++p) {
+				if(slots[p] == slot) {
+					// postings are unordered, so the last one can take its place
+					slots[p] = slots[length - 1];
+					posting_counts[word][p] = posting_counts[word][length - 1];
+					posting_length[word] = length - 1;
+					break;
+				}
+			}
+		}
+		norms_dirty = true;
+		return true;
+	}
+
+	/*
+	 * Finds the images most similar to a query
+	 * @param query_words visual word of each query descriptor
+	 * @param count number of query descriptors
+	 * @param top_k maximum number of images to shortlist
+	 * @param admissible slots that may be shortlisted, or null for every slot
+	 * @param out cleared, then receives the shortlisted slots
+	 * @return the number of slots shortlisted
+	 */
+	public int shortlist(int[] query_words, int count, int top_k, BitSet admissible, BitSet out) {
+		out.clear();
+		if(count == 0 || images == 0 || top_k <= 0)
+			return 0;
+		if(norms_dirty)
+			computeNorms();
+
+		if(scores.length < bags.length)
+			scores = new float[bags.length];
+		else
+			Arrays.fill(scores, 0, bags.length, 0f);
+
+		// accumulate tf-idf dot products over the postings of the query's words
+		for(int i = 0; i < count; ++i)
+			++query_histogram[query_words[i]];
+		for(int i = 0; i < count; ++i) {
+			int word = query_words[i];
+			int query_count = query_histogram[word];
+			if(query_count == 0)
+				continue;   // already visited
+			query_histogram[word] = 0;
+
+			int length = posting_length[word];
+			if(length == 0)
+				continue;
+			float idf = idf(word);
+			float weight = query_count * idf * idf;
+			int[] slots = posting_slots[word];
+			int[] counts = posting_counts[word];
+			for(int p = 0; p < length; ++p)
+				scores[slots[p]] += weight * counts[p];
+		}
+
+		// keep the top_k best-scoring admissible slots
+		int[] best_slots = new int[top_k];
+		float[] best_scores = new float[top_k];
+		int found = 0;
+		for(int slot = 0; slot < bags.length; ++slot) {
+			if(scores[slot] <= 0 || norms[slot] <= 0 || (admissible != null && !admissible.get(slot)))
+				continue;
+			float score = scores[slot] / norms[slot];
+			if(found == top_k && score <= best_scores[found - 1])
+				continue;
+
+			int i = found < top_k ? found++ : found - 1;
+			while(i > 0 && best_scores[i - 1] < score) {
+				best_scores[i] = best_scores[i - 1];
+				best_slots[i] = best_slots[i - 1];
+				--i;
+			}
+			best_scores[i] = score;
+			best_slots[i] = slot;
+		}
+		for(int i = 0; i < found; ++i)
+			out.set(best_slots[i]);
+		return found;
+	}
+
+	/*
+	 * @return the inverse document frequency of a word
+	 */
+	private float idf(int word) {
+		return (float) Math.log((double) images / posting_length[word]);
+	}
+
+	/*
+	 * Computes the norm of every image's tf-idf vector. Term frequencies aren't divided by the number of
+	 * descriptors in the image, since dividing by the norm already makes scores independent of it.
+	 */
+	private void computeNorms() {
+		if(norms.length < bags.length)
+			norms = new float[bags.length];
+		Arrays.fill(norms, 0f);
+		for(int word = 0; word < vocabulary_size; ++word) {
+			int length = posting_length[word];
+			if(length == 0)
+				continue;
+			float idf = idf(word);
+			for(int p = 0; p < length; ++p) {
+				float weight = posting_counts[word][p] * idf;
+				norms[posting_slots[word][p]] += weight * weight;
+			}
+		}
+		for(int slot = 0; slot < norms.length; ++slot)
+			norms[slot] = (float) Math.sqrt(norms[slot]);
+		norms_dirty = false;
+	}
+
+	/*
+	 * Reads the bags of words stored in an inverted file
+	 * @param file the file to read
+	 * @param vocabulary the vocabulary the bags must have been quantised with
+	 * @return the bags, by image filename
+	 * @throws IOException if the file can't be read, is corrupt, or was built with a different vocabulary
+	 */
+	public static Map<String,Bag> read(File file, Vocabulary vocabulary) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate((int) raf.length());
+			raf.getChannel().read(buffer);
+			buffer.flip();
+			if(buffer.remaining() < 5 * 4 || buffer.getInt() != MAGIC)
+				throw new IOException("'" + file + "' is not an inverted file");
+			int version = buffer.getInt();
+			if(version != VERSION)
+				throw new IOException("'" + file + "' has unsupported version " + version);
+			if(buffer.getLong() != vocabulary.id())
+				throw new IOException("'" + file + "' was built with a different vocabulary");
+
+			int images = buffer.getInt();
+			Map<String,Bag> bags = new HashMap<>();
+			for(int i = 0; i < images; ++i) {
+				byte[] name = new byte[buffer.getShort() & 0xFFFF];
+				buffer.get(name);
+				int distinct = buffer.getInt();
+				int[] words = new int[distinct];
+				int[] counts = new int[distinct];
+				for(int j = 0; j < distinct; ++j) {
+					words[j] = buffer.getInt();
+					counts[j] = buffer.getInt();
+					if(words[j] < 0 || words[j] >= vocabulary.size())
+						throw new IOException("'" + file + "' is corrupt");
+				}
+				bags.put(new String(name, UTF8), new Bag(words, counts));
+			}
+			return bags;
+		} catch (RuntimeException e) {
+			// buffer underflow from a truncated file
+			throw new IOException("'" + file + "' is truncated");
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Writes the bags of words of the index to disk, keyed by image filename
+	 * @param file the file to write
+	 * @param vocabulary the vocabulary the bags were quantised with
+	 * @param names filename of the image in each slot, or null for empty slots
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(File file, Vocabulary vocabulary, List<String> names) throws IOException {
+		int size = 5 * 4;
+		int images = 0;
+		byte[][] name_bytes = new byte[bags.length][];
+		for(int slot = 0; slot < bags.length && slot < names.size(); ++slot) {
+			if(bags[slot] == null || names.get(slot) == null)
+				continue;
+			name_bytes[slot] = names.get(slot).getBytes(UTF8);
+			size += 2 + name_bytes[slot].length + 4 + bags[slot].words.length * 8;
+			++images;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(vocabulary.id());
+		buffer.putInt(images);
+		for(int slot = 0; slot < bags.length; ++slot) {
+			if(name_bytes[slot] == null)
+				continue;
+			Bag bag = bags[slot];
+			buffer.putShort((short) name_bytes[slot].length);
+			buffer.put(name_bytes[slot]);
+			buffer.putInt(bag.words.length);
+			for(int i = 0; i < bag.words.length; ++i) {
+				buffer.putInt(bag.words[i]);
+				buffer.putInt(bag.counts[i]);
+			}
+		}
+		buffer.flip();
+
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			raf.getChannel().write(buffer);
+		} finally {
+			raf.close();
+		}
+		if(!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("could not rename '" + temp + "' to '" + file + "'");
+		}
+	}
+}
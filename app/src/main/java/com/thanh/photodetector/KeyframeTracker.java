@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.Video;
+
+/*
+ * Follows a recognized item from frame to frame, so it doesn't have to be recognized again in every frame.
+ *
+ * Tracking starts from a keyframe: a frame the item was recognized in, along with the key points that matched the
+ * item's image. The points are followed into each new frame with pyramidal Lucas-Kanade optical flow, which costs a
+ * fraction of extracting and matching descriptors. Points the flow loses are dropped, and the rest are checked
+ * against a homography from their keyframe positions, since the item is (mostly) flat: points that drifted off the
+ * item don't fit it. Tracking is lost, and the item must be recognized again, once too few points fit, e.g. because
+ * the camera moved on to something else.
+ *
+ * Frames are scaled down to the size of the keyframe before tracking, so points are in the same coordinates as the
+ * detector's. Not thread-safe.
+ */
+public class KeyframeTracker {
+	// Fewest points that must fit the homography for tracking to go on
+	private static final int MIN_POINTS = 8;
+	// Smallest fraction of the keyframe's points that must fit the homography for tracking to go on
+	private static final double MIN_FRACTION = 0.5;
+	// Maximum distance, in pixels of the scaled-down frames, between a point and its projection from the keyframe
+	private static final double REPROJECTION_THRESHOLD = 5.0;
+	private static final int RANSAC_ITERATIONS = 500;
+	private static final double RANSAC_CONFIDENCE = 0.995;
+
+	private static final Size WINDOW = new Size(15, 15);
+	private static final int PYRAMID_LEVELS = 2;
+
+	private Mat previous = new Mat();
+	private Mat next = new Mat();
+	private final MatOfPoint2f previous_points = new MatOfPoint2f();
+	private final MatOfPoint2f next_points = new MatOfPoint2f();
+	private final MatOfByte status = new MatOfByte();
+	private final MatOfFloat error = new MatOfFloat();
+	private final MatOfPoint2f origin_points = new MatOfPoint2f();
+	private final Mat inlier_mask = new Mat();
+
+	private float[] origin = new float[0];     // keyframe position of each tracked point
+	private float[] points = new float[0];     // current position of each tracked point
+	private float[] found = new float[0];      // position of each point in the next frame
+	private byte[] flags = new byte[0];        // flow status, then inlier mask, of each point
+	private int count;
+	private int keyframe_count;
+
+	private long item_id = -1;
+
+	/*
+	 * Starts tracking an item from a keyframe
+	 * @param keyframe the scaled-down frame the item was recognized in. Copied, so it may change afterwards.
+	 * @param points x and y of each key point of the keyframe that matched the item
+	 * @param n number of points
+	 * @param item_id the item
+	 * @return whether there are enough points to track
+	 */
+	public boolean start(Mat keyframe, float[] points, int n, long item_id) {
+		if(n < MIN_POINTS) {
+			stop();
+			return false;
+		}
+		keyframe.copyTo(previous);
+		if(origin.length < 2 * n) {
+			origin = new float[2 * n];
+			this.points = new float[2 * n];
+			found = new float[2 * n];
+			flags = new byte[n];
+		}
+		System.arraycopy(points, 0, origin, 0, 2 * n);
+		System.arraycopy(points, 0, this.points, 0, 2 * n);
+		count = n;
+		keyframe_count = n;
+		this.item_id = item_id;
+		return true;
+	}
+
+	/*
+	 * Stops tracking
+	 */
+	public void stop() {
+		item_id = -1;
+		count = 0;
+	}
+
+	/*
+	 * @return whether an item is being tracked
+	 */
+	public boolean isTracking() {
+		return item_id >= 0;
+	}
+
+	/*
+	 * @return the tracked item, or -1 if none
+	 */
+	public long item() {
+		return item_id;
+	}
+
+	/*
+	 * @return the fraction of the keyframe's points still tracked, from 0 to 1
+	 */
+	public double confidence() {
+		return keyframe_count == 0 ? 0 : (double) count / keyframe_count;
+	}
+
+	/*
+	 * Follows the tracked points into a new frame
+	 * @param frame the frame, of the same aspect ratio as the keyframe. It isn't modified.
+	 * @return whether the item is still tracked. If not, tracking stops.
+	 */
+	public boolean track(Mat frame) {
+		if(!isTracking())
+			return false;
+
+		Imgproc.resize(frame, next, previous.size());
+		previous_points.alloc(count);
+		previous_points.put(0, 0, points);
+		Video.calcOpticalFlowPyrLK(previous, next, previous_points, next_points, status, error, WINDOW, PYRAMID_LEVELS);
+
+		// keep the points the flow found
+		next_points.get(0, 0, found);
+		status.get(0, 0, flags);
+		int kept = 0;
+		for(int i = 0; i < count; ++i) {
+			if(flags[i] == 0)
+				continue;
+			origin[2 * kept] = origin[2 * i];
+			origin[2 * kept + 1] = origin[2 * i + 1];
+			points[2 * kept] = found[2 * i];
+			points[2 * kept + 1] = found[2 * i + 1];
+			++kept;
+		}
+		count = kept;
+
+		// and of those, the ones that still move with the item
+		if(count >= MIN_POINTS)
+			count = keepInliers();
+		if(count < MIN_POINTS || count < MIN_FRACTION * keyframe_count) {
+			stop();
+			return false;
+		}
+
+		Mat swap = previous;
+		previous = next;
+		next = swap;
+		return true;
+	}
+
+	/*
+	 * Drops the points that don't fit a homography from their keyframe positions
+	 * @return the number of points left
+	 */
+	private int keepInliers() {
+		origin_points.alloc(count);
+		origin_points.put(0, 0, origin);
+		previous_points.alloc(count);
+		previous_points.put(0, 0, points);
+		Mat homography = Calib3d.findHomography(origin_points, previous_points, Calib3d.RANSAC, REPROJECTION_THRESHOLD, inlier_mask,
+				RANSAC_ITERATIONS, RANSAC_CONFIDENCE);
+		boolean found = !homography.empty() && !inlier_mask.empty();
+		homography.release();
+		if(!found)
+			return 0;
+
+		inlier_mask.get(0, 0, flags);
+		int kept = 0;
+		for(int i = 0; i < count; ++i) {
+			if(flags[i] == 0)
+				continue;
+			origin[2 * kept] = origin[2 * i];
+			origin[2 * kept + 1] = origin[2 * i + 1];
+			points[2 * kept] = points[2 * i];
+			points[2 * kept + 1] = points[2 * i + 1];
+			++kept;
+		}
+		return kept;
+	}
+}
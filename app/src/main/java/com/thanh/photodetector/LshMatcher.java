@@ -0,0 +1,247 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/*
+ * Approximate matcher for binary descriptors, using multi-probe locality-sensitive hashing.
+ *
+ * Each of several hash tables keys a descriptor by a fixed random subset of its bits. A query only computes exact
+ * distances to the descriptors sharing a bucket with it in some table, plus (with multi-probe) the buckets whose
+ * keys differ from the query's in one or two bits. The index is updated as descriptors are added; rows of removed
+ * slots stay in the tables, and are skipped, until the matcher is compacted.
+ *
+ * Knobs trade recall for speed: more tables and a higher probe level find more true nearest neighbours; more key
+ * bits make buckets smaller and queries faster. Small libraries are searched exhaustively, since the index only
+ * pays off once there are many descriptors.
+ */
+public class LshMatcher extends HammingMatcher {
+	// Libraries with fewer rows than this are searched exhaustively
+	public static final int DEFAULT_MIN_INDEXED_ROWS = 10000;
+
+	private final int tables;
+	private final int key_bits;
+	private final int probe_level;
+	private final long seed;
+	private int min_indexed_rows = DEFAULT_MIN_INDEXED_ROWS;
+
+	private int[][] key_bit_index;     // bits of the descriptor making up each table's key
+	private int[][] bucket_head;       // first row in each bucket of each table, or -1
+	private int[][] next;              // next row in the same bucket, for each table and row
+	private int indexed_rows;          // rows that have been inserted into the tables
+
+	private int[] visited = new int[0];    // query stamp of the last query that checked each row
+	private int stamp;
+	private int[] probe_keys;
+
+	/*
+	 * Creates a matcher with settings that work well for ORB descriptors: 8 tables, 14-bit keys, and probing all
+	 * buckets one bit away.
+	 */
+	public LshMatcher() {
+		this(8, 14, 1, 0x5EED);
+	}
+
+	/*
+	 * @param tables number of hash tables. More tables increase recall and memory use.
+	 * @param key_bits number of bits per key, at most 20. More bits make buckets smaller and queries faster, but lower recall.
+	 * @param probe_level how many key bits may differ from the query's key in a probed bucket: 0, 1 or 2
+	 * @param seed seed for choosing the key bits, so an index can be rebuilt identically
+	 */
+	public LshMatcher(int tables, int key_bits, int probe_level, long seed) {
+		if(tables < 1 || key_bits < 1 || key_bits > 20 || probe_level < 0 || probe_level > 2)
+			throw new IllegalArgumentException("invalid LSH parameters");
+		this.tables = tables;
+		this.key_bits = key_bits;
+		this.probe_level = probe_level;
+		this.seed = seed;
+
+		int probes = 1;
+		if(probe_level >= 1)
+			probes += key_bits;
+		if(probe_level >= 2)
+			probes += key_bits * (key_bits - 1) / 2;
+		probe_keys = new int[probes];
+	}
+
+	/*
+	 * Sets the number of rows below which the library is searched exhaustively instead of through the index
+	 */
+	public void setMinIndexedRows(int rows) {
+		min_indexed_rows = rows;
+	}
+
+	@Override
+	public void add(int slot, byte[] descriptors, int count, int bytes_per_row) {
+		super.add(slot, descriptors, count, bytes_per_row);
+		if(size() >= min_indexed_rows)
+			indexRows();
+	}
+
+	@Override
+	public void match(long[] query, int query_rows, MatchResult result, BitSet slots) {
+		if(size() < min_indexed_rows) {
+			super.match(query, query_rows, result, slots);
+			return;
+		}
+		indexRows();
+
+		result.reset(query_rows);
+		final int words = words();
+		for(int q = 0; q < query_rows; ++q) {
+			int qbase = q * words;
+			if(++stamp == 0) {
+				Arrays.fill(visited, 0);
+				stamp = 1;
+			}
+
+			for(int t = 0; t < tables; ++t) {
+				int probes = probeKeys(key(query, qbase, t));
+				int[] head = bucket_head[t];
+				int[] next = this.next[t];
+				for(int p = 0; p < probes; ++p) {
+					for(int row = head[probe_keys[p]]; row >= 0; row = next[row]) {
+						if(visited[row] == stamp)
+							continue;
+						visited[row] = stamp;
+
+						int slot = slotOfRow(row);
+						if(slot < 0 || (slots != null && !slots.get(slot)))
+							continue;
+
+						int d = distance(row, query, qbase);
+						if(d < result.distance[q]) {
+							result.second_distance[q] = result.distance[q];
+							result.distance[q] = d;
+							result.train_slot[q] = slot;
+							result.train_row[q] = row - slotStart(slot);
+						} else if(d < result.second_distance[q]) {
+							result.second_distance[q] = d;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	protected void compacted() {
+		// row numbers have changed, so the tables are rebuilt on the next query
+		indexed_rows = 0;
+		if(bucket_head != null) {
+			for(int t = 0; t < tables; ++t)
+				Arrays.fill(bucket_head[t], -1);
+		}
+	}
+
+	/*
+	 * Inserts any rows that aren't in the hash tables yet
+	 */
+	private void indexRows() {
+		int rows = size();
+		if(indexed_rows == rows)
+			return;
+		if(bucket_head == null)
+			createTables();
+
+		if(next[0].length < rows) {
+			int capacity = Math.max(rows, next[0].length * 2);
+			for(int t = 0; t < tables; ++t)
+				next[t] = Arrays.copyOf(next[t], capacity);
+			visited = Arrays.copyOf(visited, capacity);
+		}
+
+		for(int row = indexed_rows; row < rows; ++row) {
+			for(int t = 0; t < tables; ++t) {
+				int key = 0;
+				int[] bits = key_bit_index[t];
+				for(int b = 0; b < key_bits; ++b) {
+					if(bit(row, bits[b]))
+						key |= 1 << b;
+				}
+				next[t][row] = bucket_head[t][key];
+				bucket_head[t][key] = row;
+			}
+		}
+		indexed_rows = rows;
+	}
+
+	/*
+	 * Chooses the key bits of every table, once the descriptor length is known
+	 */
+	private void createTables() {
+		int descriptor_bits = bytesPerRow() * 8;
+		Random random = new Random(seed);
+		key_bit_index = new int[tables][key_bits];
+		bucket_head = new int[tables][1 << key_bits];
+		next = new int[tables][0];
+		for(int t = 0; t < tables; ++t) {
+			// choose key_bits distinct bits
+			int[] bits = new int[descriptor_bits];
+			for(int i = 0; i < descriptor_bits; ++i)
+				bits[i] = i;
+			for(int i = 0; i < key_bits; ++i) {
+				int j = i + random.nextInt(descriptor_bits - i);
+				int tmp = bits[i];
+				bits[i] = bits[j];
+				bits[j] = tmp;
+			}
+			key_bit_index[t] = Arrays.copyOf(bits, key_bits);
+			Arrays.fill(bucket_head[t], -1);
+		}
+	}
+
+	/*
+	 * @return the key of a packed query descriptor in the given table
+	 */
+	private int key(long[] query, int qbase, int table) {
+		int key = 0;
+		int[] bits = key_bit_index[table];
+		for(int b = 0; b < key_bits; ++b) {
+			int bit = bits[b];
+			if(((query[qbase + (bit >>> 6)] >>> (bit & 63)) & 1) != 0)
+				key |= 1 << b;
+		}
+		return key;
+	}
+
+	/*
+	 * Fills probe_keys with the keys to probe for a query: the query's own key, then keys one and two bits away,
+	 * depending on the probe level.
+	 * @return the number of keys to probe
+	 */
+	private int probeKeys(int key) {
+		int count = 0;
+		probe_keys[count++] = key;
+		if(probe_level >= 1) {
+			for(int i = 0; i < key_bits; ++i)
+				probe_keys[count++] = key ^ (1 << i);
+		}
+		if(probe_level >= 2) {
+			for(int i = 0; i < key_bits; ++i)
+				for(int j = i + 1; j < key_bits; ++j)
+					probe_keys[count++] = key ^ (1 << i) ^ (1 << j);
+		}
+		return count;
+	}
+}
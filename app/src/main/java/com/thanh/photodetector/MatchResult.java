@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+/*
+ * Nearest and second-nearest neighbours of each descriptor of a query image, stored in primitive arrays indexed by
+ * query descriptor. Meant to be reused from one query to the next, so matching doesn't allocate per match.
+ */
+public class MatchResult {
+	// Number of query descriptors in the result
+	public int count;
+
+	// Training slot (image) of the nearest neighbour, or -1 if there is none
+	public int[] train_slot = new int[0];
+
+	// Row of the nearest neighbour within its training image
+	public int[] train_row = new int[0];
+
+	// Hamming distance to the nearest neighbour
+	public int[] distance = new int[0];
+
+	// Hamming distance to the second-nearest neighbour (from any training image)
+	public int[] second_distance = new int[0];
+
+	/*
+	 * Resets the result to hold count query descriptors, growing the arrays if needed.
+	 * Every entry starts out with no neighbour.
+	 */
+	public void reset(int count) {
+		if(train_slot.length < count) {
+			train_slot = new int[count];
+			train_row = new int[count];
+			distance = new int[count];
+			second_distance = new int[count];
+		}
+		this.count = count;
+		for(int i = 0; i < count; ++i) {
+			train_slot[i] = -1;
+			train_row[i] = -1;
+			distance[i] = Integer.MAX_VALUE;
+			second_distance[i] = Integer.MAX_VALUE;
+		}
+	}
+}
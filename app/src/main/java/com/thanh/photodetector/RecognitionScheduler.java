@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+
+import android.util.Log;
+
+/*
+ * Runs recognition on camera frames in the background, so the camera thread only ever spends a frame copy on it and
+ * the preview keeps its full frame rate.
+ *
+ * Frames are offered from the camera thread into a single-slot mailbox, and recognized one at a time on a dedicated
+ * worker thread. While a frame is being recognized, and until the next recognition is due, offered frames are
+ * dropped without being copied, so the worker always starts on a fresh frame rather than working through a backlog.
+ *
+ * The time between recognitions adapts to how long recognition takes: the worker runs back to back on slow devices,
+ * and no more often than the maximum rate on fast ones. When the device heats up, the worker rests for longer
+ * between recognitions, so it's busy only for a fraction of the time.
+ *
+ * The recognizer and listener are called one at a time, even across stop() and start(): a worker started while the
+ * previous one is still finishing a recognition waits for it to exit first. So state only they use needs no lock.
+ */
+public class RecognitionScheduler {
+	private static final String TAG = "RecognitionScheduler";
+
+	/*
+	 * Recognizes a frame. Called on the worker thread.
+	 */
+	public interface Recognizer {
+		/*
+		 * @param frame the frame. Only valid until the method returns.
+		 * @return the id of the recognized item, or -1 if none
+		 */
+		long recognize(Mat frame);
+	}
+
+	/*
+	 * Receives the result of each recognition. Called on the worker thread, right after the recognizer, and never once
+	 * stop() has returned. Called with the scheduler's lock held, so it should be quick, e.g. post to the UI thread.
+	 */
+	public interface Listener {
+		void onRecognized(long item_id);
+	}
+
+	// How hot the device is running, and the fraction of the time the worker may spend recognizing at each level
+	public enum ThermalState {
+		NORMAL(1.0),
+		WARM(0.5),
+		HOT(0.2);
+
+		public final double duty_cycle;
+
+		ThermalState(double duty_cycle) {
+			this.duty_cycle = duty_cycle;
+		}
+	}
+
+	// Weight of the latest recognition in the smoothed latency
+	private static final double LATENCY_SMOOTHING = 0.3;
+
+	private final Recognizer recognizer;
+	private final Listener listener;
+
+	private final Object lock = new Object();
+	private Mat pending = new Mat();       // the mailbox. Guarded by lock; swapped with the worker's own frame.
+	private boolean has_pending;           // guarded by lock
+	private volatile Thread worker;        // null while stopped
+	private Thread stopped_worker;         // the last worker stopped, which may still be recognizing. Guarded by lock.
+
+	private volatile long next_due = Long.MAX_VALUE;   // System.nanoTime() before which offered frames are dropped
+	private volatile long min_interval = TimeUnit.MILLISECONDS.toNanos(100);
+	private volatile ThermalState thermal_state = ThermalState.NORMAL;
+	private volatile double latency;       // smoothed recognition time, in nanoseconds
+
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong recognized = new AtomicLong();
+
+	public RecognitionScheduler(Recognizer recognizer, Listener listener) {
+		this.recognizer = recognizer;
+		this.listener = listener;
+	}
+
+	/*
+	 * Sets the maximum number of recognitions per second
+	 */
+	public void setMaxRate(double per_second) {
+		min_interval = (long) (TimeUnit.SECONDS.toNanos(1) / per_second);
+	}
+
+	public void setThermalState(ThermalState state) {
+		thermal_state = state;
+	}
+	public ThermalState getThermalState() {
+		return thermal_state;
+	}
+
+	/*
+	 * Starts the worker thread. Frames offered before this are dropped.
+	 */
+	public void start() {
+		final Thread previous;
+		Thread worker;
+		synchronized(lock) {
+			if(this.worker != null)
+				return;
+			previous = stopped_worker;
+			stopped_worker = null;
+			worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// let the last session's recognition finish first, so the two never overlap
+					if(previous != null) {
+						try {
+							previous.join();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					work();
+				}
+			}, "RecognitionScheduler");
+			worker.setPriority(Thread.NORM_PRIORITY - 1);
+			this.worker = worker;
+			next_due = System.nanoTime();
+		}
+		worker.start();
+	}
+
+	/*
+	 * Stops the worker thread. A recognition in progress is finished, but its result isn't delivered.
+	 * Doesn't wait for the worker to finish, so it's safe to call from the UI thread; start() takes care of that.
+	 */
+	public void stop() {
+		synchronized(lock) {
+			if(worker != null)
+				stopped_worker = worker;
+			worker = null;
+			next_due = Long.MAX_VALUE;
+			has_pending = false;
+			lock.notifyAll();
+		}
+	}
+
+	/*
+	 * Offers a frame for recognition. Cheap when the frame is dropped; otherwise copies it.
+	 * @param frame the frame. Isn't used after the method returns.
+	 * @return whether the frame was taken
+	 */
+	public boolean offer(Mat frame) {
+		offered.incrementAndGet();
+		if(System.nanoTime() < next_due)
+			return false;
+		synchronized(lock) {
+			// check again: the worker may have started on another frame meanwhile
+			if(System.nanoTime() < next_due)
+				return false;
+			frame.copyTo(pending);
+			has_pending = true;
+			lock.notifyAll();
+		}
+		return true;
+	}
+
+	/*
+	 * @return the smoothed time a recognition takes, in milliseconds
+	 */
+	public double latency() {
+		return latency / 1e6;
+	}
+
+	/*
+	 * @return the number of frames offered so far
+	 */
+	public long offeredFrames() {
+		return offered.get();
+	}
+
+	/*
+	 * @return the number of frames recognized so far. The rest of the offered frames were dropped.
+	 */
+	public long recognizedFrames() {
+		return recognized.get();
+	}
+
+	private void work() {
+		Thread self = Thread.currentThread();
+		Mat working = new Mat();    // owned by this thread alone, until traded for the mailbox's frame
+		try {
+			while(true) {
+				synchronized(lock) {
+					while(worker == self && !has_pending) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if(worker != self)
+						return;
+
+					Mat frame = working;
+					working = pending;
+					pending = frame;
+					has_pending = false;
+					next_due = Long.MAX_VALUE;   // drop frames until this one is done
+				}
+
+				long start = System.nanoTime();
+				long item_id;
+				try {
+					item_id = recognizer.recognize(working);
+				} catch (RuntimeException e) {
+					// e.g. a CvException on an odd frame: skip the frame, rather than let the worker die
+					Log.e(TAG, "could not recognize a frame: " + e.toString());
+					item_id = -1;
+				}
+				long finish = System.nanoTime();
+
+				// rest long enough to stay within the duty cycle, but start no sooner than the maximum rate allows
+				long elapsed = finish - start;
+				latency = (latency == 0) ? elapsed : LATENCY_SMOOTHING * elapsed + (1 - LATENCY_SMOOTHING) * latency;
+				double duty_cycle = thermal_state.duty_cycle;
+				long rest = (long) (latency * (1 - duty_cycle) / duty_cycle);
+				recognized.incrementAndGet();
+				synchronized(lock) {
+					if(worker != self)
+						return;
+					next_due = Math.max(finish + rest, start + min_interval);
+					// under the lock, so a stopped session's result can't be delivered after stop() returns
+					listener.onRecognized(item_id);
+				}
+			}
+		} finally {
+			working.release();
+			synchronized(lock) {
+				// if the worker died of something else, let start() start a new one
+				if(worker == self) {
+					worker = null;
+					stopped_worker = self;
+					next_due = Long.MAX_VALUE;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.BitSet;
+
+/*
+ * Finds the points (e.g. tour items or training images) within some distance of a location, without measuring the
+ * distance to every point.
+ *
+ * Points are kept in a 2-d tree over latitude and longitude, built once, in place, in O(n log n). A query only visits
+ * the branches that overlap the bounding box of its circle, and measures the exact (great-circle) distance to the
+ * points in the box, so a small radius costs about O(log n + k) for k points found.
+ *
+ * Immutable once built, so it can be queried from any thread. Longitudes don't wrap around the antimeridian.
+ * Has no Android dependency.
+ */
+public class SpatialIndex {
+	// Mean radius of the Earth, in meters
+	private static final double EARTH_RADIUS = 6371008.8;
+	private static final double METERS_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+	private final int[] ids;
+	private final double[] latitudes;
+	private final double[] longitudes;
+	private final int size;
+
+	/*
+	 * @param ids id of each point, reported by within()
+	 * @param latitudes latitude of each point, in degrees
+	 * @param longitudes longitude of each point, in degrees
+	 * @param n number of points
+	 */
+	public SpatialIndex(int[] ids, double[] latitudes, double[] longitudes, int n) {
+		this.ids = new int[n];
+		this.latitudes = new double[n];
+		this.longitudes = new double[n];
+		System.arraycopy(ids, 0, this.ids, 0, n);
+		System.arraycopy(latitudes, 0, this.latitudes, 0, n);
+		System.arraycopy(longitudes, 0, this.longitudes, 0, n);
+		size = n;
+		build(0, n, 0);
+	}
+
+	/*
+	 * @return the number of points
+	 */
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * Finds the points within a distance of a location
+	 * @param latitude latitude of the location, in degrees
+	 * @param longitude longitude of the location, in degrees
+	 * @param radius the distance, in meters
+	 * @param out receives the id of each point found. Bits already set are left alone.
+	 * @return the number of points found
+	 */
+	public int within(double latitude, double longitude, double radius, BitSet out) {
+		double latitude_range = radius / METERS_PER_DEGREE;
+		return search(0, size, 0, latitude, longitude, latitude_range, longitudeRange(latitude, latitude_range), radius, out);
+	}
+
+	/*
+	 * Finds the distance to the nearest point, only visiting the branches that could hold a point nearer than the
+	 * nearest one found so far
+	 * @param latitude latitude of the location, in degrees
+	 * @param longitude longitude of the location, in degrees
+	 * @return the distance, in meters, or Double.POSITIVE_INFINITY if there are no points
+	 */
+	public double nearest(double latitude, double longitude) {
+		double[] best = { Double.POSITIVE_INFINITY };
+		nearest(0, size, 0, latitude, longitude, best);
+		return best[0];
+	}
+
+	/*
+	 * @return the great-circle distance between two locations, in meters
+	 */
+	public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+		double sin_latitude = Math.sin(Math.toRadians(latitude2 - latitude1) / 2);
+		double sin_longitude = Math.sin(Math.toRadians(longitude2 - longitude1) / 2);
+		double a = sin_latitude * sin_latitude
+				+ Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * sin_longitude * sin_longitude;
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	// Longitudes, in degrees, that are within a latitude range of a location: a degree of longitude is shortest at the
+	// edge of the range nearest to a pole
+	private static double longitudeRange(double latitude, double latitude_range) {
+		double cos = Math.cos(Math.toRadians(Math.min(90, Math.abs(latitude) + latitude_range)));
+		return (cos <= 0) ? 360 : latitude_range / cos;
+	}
+
+	// The tree is implicit: the point splitting [from, to) is at its middle, with the left branch before it
+	private void build(int from, int to, int axis) {
+		if(to - from <= 1)
+			return;
+		int middle = (from + to) >>> 1;
+		select(from, to, middle, axis);
+		build(from, middle, 1 - axis);
+		build(middle + 1, to, 1 - axis);
+	}
+
+	private int search(int from, int to, int axis, double latitude, double longitude,
+					   double latitude_range, double longitude_range, double radius, BitSet out) {
+		if(from >= to)
+			return 0;
+		int middle = (from + to) >>> 1;
+		int found = 0;
+		double point_latitude = latitudes[middle];
+		double point_longitude = longitudes[middle];
+		if(Math.abs(point_latitude - latitude) <= latitude_range && Math.abs(point_longitude - longitude) <= longitude_range
+				&& distance(latitude, longitude, point_latitude, point_longitude) <= radius) {
+			out.set(ids[middle]);
+			++found;
+		}
+
+		double split = (axis == 0) ? point_latitude : point_longitude;
+		double center = (axis == 0) ? latitude : longitude;
+		double range = (axis == 0) ? latitude_range : longitude_range;
+		if(center - range <= split)
+			found += search(from, middle, 1 - axis, latitude, longitude, latitude_range, longitude_range, radius, out);
+		if(center + range >= split)
+			found += search(middle + 1, to, 1 - axis, latitude, longitude, latitude_range, longitude_range, radius, out);
+		return found;
+	}
+
+	private void nearest(int from, int to, int axis, double latitude, double longitude, double[] best) {
+		if(from >= to)
+			return;
+		int middle = (from + to) >>> 1;
+		double point_latitude = latitudes[middle];
+		double point_longitude = longitudes[middle];
+		best[0] = Math.min(best[0], distance(latitude, longitude, point_latitude, point_longitude));
+
+		// search the side of the split the location is on first, so the other side can often be skipped
+		double offset = (axis == 0) ? latitude - point_latitude : longitude - point_longitude;
+		if(offset <= 0)
+			nearest(from, middle, 1 - axis, latitude, longitude, best);
+		else
+			nearest(middle + 1, to, 1 - axis, latitude, longitude, best);
+		double latitude_range = best[0] / METERS_PER_DEGREE;
+		double range = (axis == 0) ? latitude_range : longitudeRange(latitude, latitude_range);
+		if(Math.abs(offset) <= range) {
+			if(offset <= 0)
+				nearest(middle + 1, to, 1 - axis, latitude, longitude, best);
+			else
+				nearest(from, middle, 1 - axis, latitude, longitude, best);
+		}
+	}
+
+	// Partially sorts [from, to) along an axis so the k-th point is in place, with no greater point before it and no
+	// smaller point after it (quickselect)
+	private void select(int from, int to, int k, int axis) {
+		double[] values = (axis == 0) ? latitudes : longitudes;
+		int left = from;
+		int right = to - 1;
+		while(left < right) {
+			double pivot = values[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while(i <= j) {
+				while(values[i] < pivot)
+					++i;
+				while(values[j] > pivot)
+					--j;
+				if(i <= j)
+					swap(i++, j--);
+			}
+			if(k <= j)
+				right = j;
+			else if(k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double latitude = latitudes[i];
+		latitudes[i] = latitudes[j];
+		latitudes[j] = latitude;
+		double longitude = longitudes[i];
+		longitudes[i] = longitudes[j];
+		longitudes[j] = longitude;
+	}
+}
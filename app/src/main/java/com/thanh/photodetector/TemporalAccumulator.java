@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+
+/*
+ * Accumulates the evidence for each tour item over a stream of frames, so an item can be recognized from several
+ * borderline frames rather than needing a single clear one.
+ *
+ * Each frame gives every item some evidence: a count of matches (or inliers) to the item's best image. An item's
+ * score is the sum of its evidence, decayed by a constant factor every frame so that old frames count less, and
+ * an item the camera has moved away from fades out. The leading item is accepted once its lead over the runner-up
+ * passes a confidence bound: as for the 2nd-best filter of a single query, counts are treated as Poisson, so the
+ * lead must be several standard deviations, (best - second)^2 > confidence * best. A clear frame passes the bound
+ * by itself, so confident recognitions finish after a single frame.
+ *
+ * Use one frame at a time: beginFrame(), add() for each item with evidence, then endFrame(). Not thread-safe.
+ * Has no OpenCV dependency.
+ */
+public class TemporalAccumulator {
+	// Scores below this are dropped, so items that left the view don't linger
+	private static final double MIN_SCORE = 0.5;
+
+	private final double decay;
+	private final double confidence;
+
+	private long[] items = new long[8];
+	private double[] scores = new double[8];
+	private double[] frame_evidence = new double[8]; // evidence of the current frame
+	private int size;
+
+	private int frames;
+	private long best_item = -1;
+	private double best_score;
+	private double second_score;
+
+	/*
+	 * @param decay factor each score is multiplied by every frame, between 0 (only the latest frame counts) and 1
+	 * @param confidence how many variances the leading item's lead must be, squared, to be accepted
+	 */
+	public TemporalAccumulator(double decay, double confidence) {
+		this.decay = decay;
+		this.confidence = confidence;
+	}
+
+	/*
+	 * Starts a frame, decaying the scores of the previous frames
+	 */
+	public void beginFrame() {
+		int kept = 0;
+		for(int i = 0; i < size; ++i) {
+			double score = scores[i] * decay;
+			if(score < MIN_SCORE)
+				continue;
+			items[kept] = items[i];
+			scores[kept] = score;
+			frame_evidence[kept] = 0;
+			++kept;
+		}
+		size = kept;
+	}
+
+	/*
+	 * Adds evidence for an item in the current frame. Only the most evidence given to an item in a frame counts,
+	 * so this can be called once for each image of the item.
+	 * @param item_id the item
+	 * @param evidence the number of matches or inliers
+	 */
+	public void add(long item_id, double evidence) {
+		if(evidence <= 0)
+			return;
+		int i = indexOf(item_id);
+		if(i < 0) {
+			if(size == items.length) {
+				items = Arrays.copyOf(items, size * 2);
+				scores = Arrays.copyOf(scores, size * 2);
+				frame_evidence = Arrays.copyOf(frame_evidence, size * 2);
+			}
+			i = size++;
+			items[i] = item_id;
+			scores[i] = 0;
+			frame_evidence[i] = 0;
+		}
+		if(evidence > frame_evidence[i])
+			frame_evidence[i] = evidence;
+	}
+
+	/*
+	 * Finishes a frame, adding its evidence to the scores
+	 * @return the id of the accepted item, or -1 if no item is accepted yet
+	 */
+	public long endFrame() {
+		++frames;
+		best_item = -1;
+		best_score = 0;
+		second_score = 0;
+		for(int i = 0; i < size; ++i) {
+			double score = scores[i] + frame_evidence[i];
+			scores[i] = score;
+			if(score > best_score) {
+				second_score = best_score;
+				best_score = score;
+				best_item = items[i];
+			} else if(score > second_score) {
+				second_score = score;
+			}
+		}
+		return isAccepted() ? best_item : -1;
+	}
+
+	/*
+	 * @return whether the leading item passes the confidence bound, as of the last endFrame()
+	 */
+	public boolean isAccepted() {
+		double lead = best_score - second_score;
+		return best_item >= 0 && lead * lead > confidence * best_score;
+	}
+
+	/*
+	 * Tells whether the leading item is still in doubt: another item has evidence too, and the leader has less than
+	 * half the lead it needs to be accepted. The next frame is then worth matching more carefully. With a single
+	 * item, or none, there's no runner-up to tell apart, so that isn't ambiguous.
+	 */
+	public boolean isAmbiguous() {
+		if(best_item < 0 || isAccepted())
+			return false;
+		double lead = best_score - second_score;
+		return second_score > 0 && 4 * lead * lead <= confidence * best_score;
+	}
+
+	/*
+	 * @return the leading item as of the last endFrame(), accepted or not, or -1 if no item has evidence
+	 */
+	public long bestItem() {
+		return best_item;
+	}
+
+	/*
+	 * @return the number of frames since the last reset()
+	 */
+	public int frames() {
+		return frames;
+	}
+
+	/*
+	 * Forgets every frame so far
+	 */
+	public void reset() {
+		size = 0;
+		frames = 0;
+		best_item = -1;
+		best_score = 0;
+		second_score = 0;
+	}
+
+	private int indexOf(long item_id) {
+		for(int i = 0; i < size; ++i) {
+			if(items[i] == item_id)
+				return i;
+		}
+		return -1;
+	}
+}
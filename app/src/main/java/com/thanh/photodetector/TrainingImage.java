@@ -22,6 +22,7 @@ package com.thanh.photodetector;
 import java.io.File;
 import java.io.IOException;
 
+import org.opencv.core.KeyPoint;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfKeyPoint;
 
@@ -33,6 +34,7 @@ public class TrainingImage {
 	private long tour_id;   /// id of the tour this image is from
 	private Mat image;
 	private MatOfKeyPoint key_points;
+	private float[] key_point_coordinates; /// x and y of the key point of each descriptor
 	private Mat descriptors;
 	private Location location;
 	
@@ -96,6 +98,12 @@ public class TrainingImage {
 	public void setKeyPoints(MatOfKeyPoint new_key_points)
 	{
 		key_points = new_key_points;
+		key_point_coordinates = null;
+	}
+
+	public void setKeyPointCoordinates(float[] coordinates)
+	{
+		key_point_coordinates = coordinates;
 	}
 	
 	public String name(){
@@ -123,6 +131,22 @@ public class TrainingImage {
 		return key_points;
 	}
 
+	/*
+	 * @return x and y of the key point of each descriptor, or null if the key points aren't known
+	 */
+	public float[] keyPointCoordinates(){
+		if(key_point_coordinates == null && key_points != null){
+			KeyPoint[] points = key_points.toArray();
+			float[] coordinates = new float[2 * points.length];
+			for(int i = 0; i < points.length; i++){
+				coordinates[2 * i] = (float) points[i].pt.x;
+				coordinates[2 * i + 1] = (float) points[i].pt.y;
+			}
+			key_point_coordinates = coordinates;
+		}
+		return key_point_coordinates;
+	}
+
 	public Location location(){
 		return location;
 	}
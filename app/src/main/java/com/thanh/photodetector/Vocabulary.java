@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * Visual vocabulary for binary descriptors: a set of binary centroids ("visual words") that descriptors are quantised
+ * to by Hamming distance.
+ *
+ * Vocabularies are trained with k-majority clustering, the binary counterpart of k-means: each descriptor is assigned
+ * to its nearest centroid, then each bit of a centroid is set to the majority value of that bit among its
+ * descriptors.
+ *
+ * Layout on disk (big-endian): magic, version, vocabulary id, number of words, longs per descriptor, then the packed
+ * centroids.
+ */
+public class Vocabulary {
+	// Name of the vocabulary file in a tour's directory
+	public static final String FILENAME = "vocabulary.bin";
+
+	private static final int MAGIC = 0x4F445356;    // "ODSV"
+	private static final int VERSION = 1;
+
+	private final long id;
+	private final int size;
+	private final int words;
+	private final long[] centroids;
+
+	private Vocabulary(long id, int size, int words, long[] centroids) {
+		this.id = id;
+		this.size = size;
+		this.words = words;
+		this.centroids = centroids;
+	}
+
+	/*
+	 * @return a random id identifying this vocabulary, so an inverted file can tell which vocabulary it was built with
+	 */
+	public long id() {
+		return id;
+	}
+
+	/*
+	 * @return the number of visual words
+	 */
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * @return the number of longs in each packed descriptor
+	 */
+	public int words() {
+		return words;
+	}
+
+	/*
+	 * Trains a vocabulary by k-majority clustering.
+	 * @param descriptors descriptors to cluster, packed with HammingMatcher.pack()
+	 * @param rows number of descriptors
+	 * @param words number of longs in each packed descriptor
+	 * @param size number of visual words wanted. Fewer are created if there are fewer descriptors.
+	 * @param iterations maximum number of assignment/update rounds
+	 * @param random source of randomness for choosing the initial centroids
+	 * @return the trained vocabulary
+	 */
+	public static Vocabulary train(long[] descriptors, int rows, int words, int size, int iterations, Random random) {
+		if(rows == 0)
+			throw new IllegalArgumentException("cannot train a vocabulary without descriptors");
+		size = Math.min(size, rows);
+		int bits = words * 64;
+		long[] centroids = new long[size * words];
+
+		// initial centroids are distinct random descriptors
+		int[] order = new int[rows];
+		for(int i = 0; i < rows; ++i)
+			order[i] = i;
+		for(int i = 0; i < size; ++i) {
+			int j = i + random.nextInt(rows - i);
+			int tmp = order[i];
+			order[i] = order[j];
+			order[j] = tmp;
+			System.arraycopy(descriptors, order[i] * words, centroids, i * words, words);
+		}
+
+		Vocabulary vocabulary = new Vocabulary(random.nextLong(), size, words, centroids);
+		int[] assignment = new int[rows];
+		int[] members = new int[size];
+		int[] bit_counts = new int[size * bits];
+		for(int iteration = 0; iteration < iterations; ++iteration) {
+			// assign each descriptor to its nearest centroid
+			boolean changed = iteration == 0;
+			for(int row = 0; row < rows; ++row) {
+				int word = vocabulary.quantize(descriptors, row * words);
+				if(word != assignment[row]) {
+					assignment[row] = word;
+					changed = true;
+				}
+			}
+			if(!changed)
+				break;
+
+			// count the set bits of each cluster's members
+			Arrays.fill(members, 0);
+			Arrays.fill(bit_counts, 0);
+			for(int row = 0; row < rows; ++row) {
+				int cluster = assignment[row];
+				++members[cluster];
+				int base = cluster * bits;
+				for(int w = 0; w < words; ++w) {
+					long value = descriptors[row * words + w];
+					while(value != 0) {
+						++bit_counts[base + w * 64 + Long.numberOfTrailingZeros(value)];
+						value &= value - 1;
+					}
+				}
+			}
+
+			// move each centroid to the majority of its members, reseeding empty clusters
+			for(int cluster = 0; cluster < size; ++cluster) {
+				int base = cluster * words;
+				if(members[cluster] == 0) {
+					System.arraycopy(descriptors, random.nextInt(rows) * words, centroids, base, words);
+					continue;
+				}
+				for(int w = 0; w < words; ++w) {
+					long value = 0;
+					for(int b = 0; b < 64; ++b) {
+						if(2 * bit_counts[cluster * bits + w * 64 + b] > members[cluster])
+							value |= 1L << b;
+					}
+					centroids[base + w] = value;
+				}
+			}
+		}
+		return vocabulary;
+	}
+
+	/*
+	 * @param descriptors packed descriptors
+	 * @param offset index of the first long of the descriptor to quantise
+	 * @return the visual word nearest to the descriptor
+	 */
+	public int quantize(long[] descriptors, int offset) {
+		int best = 0;
+		int best_distance = Integer.MAX_VALUE;
+		for(int word = 0; word < size; ++word) {
+			int base = word * words;
+			int d = 0;
+			for(int w = 0; w < words; ++w)
+				d += Long.bitCount(centroids[base + w] ^ descriptors[offset + w]);
+			if(d < best_distance) {
+				best_distance = d;
+				best = word;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Quantises several descriptors
+	 * @param descriptors packed descriptors
+	 * @param rows number of descriptors
+	 * @param out receives the visual word of each descriptor; reallocated if it's too small
+	 * @return the array holding the visual words
+	 */
+	public int[] quantize(long[] descriptors, int rows, int[] out) {
+		if(out == null || out.length < rows)
+			out = new int[rows];
+		for(int row = 0; row < rows; ++row)
+			out[row] = quantize(descriptors, row * words);
+		return out;
+	}
+
+	/*
+	 * Reads a vocabulary from disk
+	 * @param file the file to read
+	 * @return the vocabulary stored in the file
+	 * @throws IOException if the file can't be read, or is corrupt
+	 */
+	public static Vocabulary read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate((int) raf.length());
+			raf.getChannel().read(buffer);
+			buffer.flip();
+			if(buffer.remaining() < 6 * 4 || buffer.getInt() != MAGIC)
+				throw new IOException("'" + file + "' is not a vocabulary");
+			int version = buffer.getInt();
+			if(version != VERSION)
+				throw new IOException("'" + file + "' has unsupported version " + version);
+
+			long id = buffer.getLong();
+			int size = buffer.getInt();
+			int words = buffer.getInt();
+			if(size <= 0 || words <= 0 || (long) size * words * 8 != buffer.remaining())
+				throw new IOException("'" + file + "' is truncated");
+			long[] centroids = new long[size * words];
+			buffer.asLongBuffer().get(centroids);
+			return new Vocabulary(id, size, words, centroids);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Writes the vocabulary to disk, through a temporary file that is renamed into place
+	 * @param file the file to write
+	 * @throws IOException if the file can't be written
+	 */
+	public void write(File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(6 * 4 + centroids.length * 8);
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putLong(id);
+		buffer.putInt(size);
+		buffer.putInt(words);
+		buffer.asLongBuffer().put(centroids);
+		buffer.position(buffer.capacity());
+		buffer.flip();
+
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			raf.setLength(0);
+			raf.getChannel().write(buffer);
+		} finally {
+			raf.close();
+		}
+		if(!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("could not rename '" + temp + "' to '" + file + "'");
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import java.util.Arrays;
+
+/*
+ * Counts the matches of a query to each training image, and finds the image with the most matches along with the
+ * runner-up from a different tour item.
+ *
+ * Votes are kept in an int[] histogram indexed by training slot. Only the slots that received votes are visited
+ * afterwards (and cleared before the next query), so the cost is proportional to the number of matches rather than
+ * the size of the library. All buffers are reused, so counting doesn't allocate once they've grown to size.
+ *
+ * Has no OpenCV dependency, so it can be used (and benchmarked) on a plain JVM.
+ */
+public class VoteCounter {
+	private int[] votes = new int[0];      // votes of each slot
+	private int[] candidates = new int[0]; // slots with votes, in order of their first vote
+	private int candidate_count;
+
+	private int best_slot = -1;
+	private int second_slot = -1;
+
+	/*
+	 * Counts the votes of every matched query descriptor, replacing the previous counts
+	 * @param matches nearest neighbours of the query descriptors; entries with no neighbour don't vote
+	 * @param slots number of training slots, an upper bound on the slots in matches
+	 */
+	public void count(MatchResult matches, int slots) {
+		for(int i = 0; i < candidate_count; ++i)
+			votes[candidates[i]] = 0;
+		candidate_count = 0;
+		best_slot = -1;
+		second_slot = -1;
+
+		if(votes.length < slots) {
+			votes = Arrays.copyOf(votes, Math.max(slots, votes.length * 2));
+			candidates = new int[votes.length];
+		}
+
+		final int[] train_slot = matches.train_slot;
+		for(int i = 0; i < matches.count; ++i) {
+			int slot = train_slot[i];
+			if(slot >= 0 && votes[slot]++ == 0)
+				candidates[candidate_count++] = slot;
+		}
+	}
+
+	/*
+	 * @return the number of slots with votes
+	 */
+	public int candidates() {
+		return candidate_count;
+	}
+
+	/*
+	 * @return the i-th slot with votes. Discarded slots are still listed, with no votes.
+	 */
+	public int candidate(int i) {
+		return candidates[i];
+	}
+
+	/*
+	 * @return the number of votes of a slot
+	 */
+	public int votes(int slot) {
+		return slot >= 0 && slot < votes.length ? votes[slot] : 0;
+	}
+
+	/*
+	 * Removes the votes of a slot, e.g. because it was ruled out by location. Must be called before rank().
+	 */
+	public void discard(int slot) {
+		votes[slot] = 0;
+	}
+
+	/*
+	 * Finds, in a single pass over the slots with votes, the slot with the most votes and the slot with the most
+	 * votes among those of other tour items. Ties go to the slot that was matched first.
+	 * @param slot_items tour item of each slot
+	 */
+	public void rank(long[] slot_items) {
+		int best = -1;
+		int second = -1;
+		for(int i = 0; i < candidate_count; ++i) {
+			int slot = candidates[i];
+			int slot_votes = votes[slot];
+			if(slot_votes == 0)
+				continue;
+			if(best < 0) {
+				best = slot;
+			} else if(slot_votes > votes[best]) {
+				// the old best beats every other item's slots, so it's the runner-up unless it's from the same item
+				if(slot_items[slot] != slot_items[best])
+					second = best;
+				best = slot;
+			} else if(slot_items[slot] != slot_items[best] && (second < 0 || slot_votes > votes[second])) {
+				second = slot;
+			}
+		}
+		best_slot = best;
+		second_slot = second;
+	}
+
+	/*
+	 * @return the slot with the most votes, as of the last rank(), or -1 if no slot has votes
+	 */
+	public int bestSlot() {
+		return best_slot;
+	}
+
+	/*
+	 * @return the slot with the most votes among other items than the best slot's, as of the last rank(), or -1
+	 */
+	public int secondSlot() {
+		return second_slot;
+	}
+
+	/*
+	 * Finds the slots with the most votes
+	 * @param n maximum number of slots to return
+	 * @param out receives the slots, in decreasing order of votes; must have room for n slots
+	 * @return the number of slots returned
+	 */
+	public int top(int n, int[] out) {
+		if(n <= 0)
+			return 0;
+		int found = 0;
+		for(int i = 0; i < candidate_count; ++i) {
+			int slot = candidates[i];
+			int slot_votes = votes[slot];
+			if(slot_votes == 0 || (found == n && slot_votes <= votes[out[found - 1]]))
+				continue;
+
+			int j = found < n ? found++ : found - 1;
+			while(j > 0 && votes[out[j - 1]] < slot_votes) {
+				out[j] = out[j - 1];
+				--j;
+			}
+			out[j] = slot;
+		}
+		return found;
+	}
+}
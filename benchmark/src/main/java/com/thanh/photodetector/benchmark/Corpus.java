@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/*
+ * Synthetic training library standing in for a tour's images, so the benchmarks don't need real photos or OpenCV.
+ *
+ * Every image gets random ORB-sized descriptors (32 bytes) with key point coordinates inside the 300 pixel square the
+ * detector resizes images to. Queries are noisy copies of a training image's descriptors, so matching finds a clear
+ * winner the way it does for a real photo of a tour item.
+ *
+ * Corpora are generated from a fixed seed, so every run (and every release) benchmarks the same data.
+ */
+public class Corpus {
+	// Length of an ORB descriptor, in bytes
+	public static final int BYTES_PER_ROW = 32;
+
+	// OpenCV type of ORB descriptors (CV_8UC1)
+	public static final int TYPE = 0;
+
+	// Roughly what ORB finds in an image resized to the detector's 300 pixels
+	public static final int DESCRIPTORS_PER_IMAGE = 300;
+
+	// Training images per tour item
+	public static final int IMAGES_PER_ITEM = 3;
+
+	// Bits flipped in each descriptor of a query, so queries are near but not identical to their training image
+	private static final int QUERY_NOISE_BITS = 20;
+
+	private static final long SEED = 42;
+
+	public final int images;
+	public final byte[][] descriptors;  // descriptors of each image, row after row
+	public final float[][] points;      // x and y of the key point of each descriptor of each image
+	public final long[] items;          // tour item of each image
+
+	public Corpus(int images) {
+		this.images = images;
+		descriptors = new byte[images][];
+		points = new float[images][];
+		items = new long[images];
+
+		Random random = new Random(SEED);
+		for(int image = 0; image < images; ++image) {
+			descriptors[image] = new byte[DESCRIPTORS_PER_IMAGE * BYTES_PER_ROW];
+			random.nextBytes(descriptors[image]);
+			points[image] = new float[2 * DESCRIPTORS_PER_IMAGE];
+			for(int i = 0; i < points[image].length; ++i)
+				points[image][i] = random.nextFloat() * 300;
+			items[image] = image / IMAGES_PER_ITEM;
+		}
+	}
+
+	/*
+	 * @return the number of tour items the images belong to
+	 */
+	public int itemCount() {
+		return (images + IMAGES_PER_ITEM - 1) / IMAGES_PER_ITEM;
+	}
+
+	/*
+	 * @return the name of an image's file, as a tour would store it
+	 */
+	public static String imageName(int image) {
+		return "image" + image + ".jpg";
+	}
+
+	/*
+	 * Creates a query: the descriptors of a training image, each with a few random bits flipped
+	 * @param image the training image the query shows
+	 * @param seed seed for the noise
+	 * @return the query descriptors, row after row
+	 */
+	public byte[] query(int image, long seed) {
+		Random random = new Random(seed);
+		byte[] query = descriptors[image].clone();
+		for(int row = 0; row < DESCRIPTORS_PER_IMAGE; ++row) {
+			for(int i = 0; i < QUERY_NOISE_BITS; ++i) {
+				int bit = random.nextInt(BYTES_PER_ROW * 8);
+				query[row * BYTES_PER_ROW + bit / 8] ^= 1 << (bit % 8);
+			}
+		}
+		return query;
+	}
+
+	/*
+	 * Creates an empty temporary directory, for benchmarks that read and write files
+	 */
+	public static File createTempDirectory(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if(!dir.delete() || !dir.mkdir())
+			throw new IOException("could not create '" + dir + "'");
+		return dir;
+	}
+
+	/*
+	 * Deletes a directory created by createTempDirectory(), along with its files
+	 */
+	public static void deleteDirectory(File dir) {
+		File[] files = dir.listFiles();
+		if(files != null) {
+			for(File file : files)
+				file.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector.benchmark;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thanh.photodetector.HammingMatcher;
+import com.thanh.photodetector.InvertedIndex;
+import com.thanh.photodetector.LshMatcher;
+import com.thanh.photodetector.MatchResult;
+import com.thanh.photodetector.Vocabulary;
+
+/*
+ * Matching stage of detectPhoto: finding the nearest training descriptor of every query descriptor, with each of the
+ * pure-Java matchers, and with the bag-of-words shortlist the detector uses on large libraries.
+ *
+ * The OpenCV brute-force matcher is benchmarked separately by NativeMatchingBenchmark, since it needs the native library.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MatchingBenchmark {
+	// Number of training images in the library
+	@Param({"10", "100", "1000", "10000"})
+	public int images;
+
+	// Same settings as ImageDetector
+	private static final int VOCABULARY_SIZE = 256;
+	private static final int VOCABULARY_SAMPLE = 20000;
+	private static final int VOCABULARY_ITERATIONS = 10;
+	private static final int SHORTLIST_SIZE = 10;
+
+	private HammingMatcher exact;
+	private HammingMatcher parallel;
+	private LshMatcher lsh;
+	private Vocabulary vocabulary;
+	private InvertedIndex inverted_index;
+
+	private long[] query;
+	private int query_rows;
+	private int[] query_words;
+	private BitSet shortlist = new BitSet();
+	private MatchResult result = new MatchResult();
+
+	@Setup
+	public void setup() {
+		Corpus corpus = new Corpus(images);
+		exact = new HammingMatcher();
+		parallel = new HammingMatcher();
+		parallel.setParallel(true);
+		lsh = new LshMatcher();
+		for(int slot = 0; slot < images; ++slot) {
+			exact.add(slot, corpus.descriptors[slot], Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW);
+			parallel.add(slot, corpus.descriptors[slot], Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW);
+			lsh.add(slot, corpus.descriptors[slot], Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW);
+		}
+
+		// train the vocabulary on a sample of the library, as the detector does
+		int words = HammingMatcher.wordsPerRow(Corpus.BYTES_PER_ROW);
+		int sample_images = Math.max(1, Math.min(images, VOCABULARY_SAMPLE / Corpus.DESCRIPTORS_PER_IMAGE));
+		byte[] sample = new byte[sample_images * Corpus.DESCRIPTORS_PER_IMAGE * Corpus.BYTES_PER_ROW];
+		for(int i = 0; i < sample_images; ++i) {
+			int image = (int) ((long) i * images / sample_images);
+			System.arraycopy(corpus.descriptors[image], 0, sample, i * corpus.descriptors[image].length, corpus.descriptors[image].length);
+		}
+		int sample_rows = sample_images * Corpus.DESCRIPTORS_PER_IMAGE;
+		vocabulary = Vocabulary.train(HammingMatcher.pack(sample, sample_rows, Corpus.BYTES_PER_ROW, null), sample_rows, words, VOCABULARY_SIZE, VOCABULARY_ITERATIONS, new Random(42));
+		inverted_index = new InvertedIndex(vocabulary.size());
+		int[] image_words = null;
+		long[] packed = null;
+		for(int slot = 0; slot < images; ++slot) {
+			packed = HammingMatcher.pack(corpus.descriptors[slot], Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW, packed);
+			image_words = vocabulary.quantize(packed, Corpus.DESCRIPTORS_PER_IMAGE, image_words);
+			inverted_index.add(slot, InvertedIndex.Bag.of(image_words, Corpus.DESCRIPTORS_PER_IMAGE, vocabulary.size()));
+		}
+
+		query_rows = Corpus.DESCRIPTORS_PER_IMAGE;
+		query = HammingMatcher.pack(corpus.query(images / 2, 7), query_rows, Corpus.BYTES_PER_ROW, null);
+	}
+
+	@Benchmark
+	public MatchResult exact() {
+		exact.match(query, query_rows, result);
+		return result;
+	}
+
+	@Benchmark
+	public MatchResult exactParallel() {
+		parallel.match(query, query_rows, result);
+		return result;
+	}
+
+	@Benchmark
+	public MatchResult lsh() {
+		lsh.match(query, query_rows, result, null);
+		return result;
+	}
+
+	// Quantises the query, shortlists the most similar images, and matches exactly against those only
+	@Benchmark
+	public MatchResult shortlisted() {
+		query_words = vocabulary.quantize(query, query_rows, query_words);
+		inverted_index.shortlist(query_words, query_rows, SHORTLIST_SIZE, null, shortlist);
+		exact.match(query, query_rows, result, shortlist);
+		return result;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorExtractor;
+import org.opencv.features2d.FeatureDetector;
+import org.opencv.imgproc.Imgproc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Descriptor extraction, as in ImageDetector.imgDescriptor: detecting ORB key points in an image resized to the
+ * detector's 300 pixels and computing their descriptors.
+ *
+ * Needs a desktop build of OpenCV 3.0's Java bindings, so it only runs when the jmh task is given its location with
+ * -Popencv=/path/to/dir/containing/libopencv_java300.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NativeExtractionBenchmark {
+	private Mat image;
+	private FeatureDetector detector;
+	private DescriptorExtractor extractor;
+
+	@Setup
+	public void setup() {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		// blurred noise has plenty of corners, like a photo
+		image = new Mat(225, 300, CvType.CV_8UC1);
+		Core.randu(image, 0, 256);
+		Imgproc.GaussianBlur(image, image, new Size(5, 5), 0);
+		detector = FeatureDetector.create(FeatureDetector.ORB);
+		extractor = DescriptorExtractor.create(DescriptorExtractor.ORB);
+	}
+
+	@TearDown
+	public void tearDown() {
+		image.release();
+	}
+
+	@Benchmark
+	public int extraction() {
+		MatOfKeyPoint key_points = new MatOfKeyPoint();
+		Mat descriptors = new Mat();
+		detector.detect(image, key_points);
+		extractor.compute(image, key_points, descriptors);
+		int rows = descriptors.rows();
+		key_points.release();
+		descriptors.release();
+		return rows;
+	}
+}
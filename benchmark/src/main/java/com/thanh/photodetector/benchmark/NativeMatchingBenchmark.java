@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * OpenCV's brute-force Hamming matcher, which the detector used before the pure-Java matchers in MatchingBenchmark.
+ * Kept as their baseline.
+ *
+ * Needs a desktop build of OpenCV 3.0's Java bindings, so it only runs when the jmh task is given its location with
+ * -Popencv=/path/to/dir/containing/libopencv_java300.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class NativeMatchingBenchmark {
+	// Number of training images in the library
+	@Param({"10", "100", "1000", "10000"})
+	public int images;
+
+	private DescriptorMatcher matcher;
+	private Mat query;
+	private MatOfDMatch matches;
+
+	@Setup
+	public void setup() {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+		Corpus corpus = new Corpus(images);
+		List<Mat> library = new ArrayList<>();
+		for(int slot = 0; slot < images; ++slot) {
+			Mat descriptors = new Mat(Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW, CvType.CV_8UC1);
+			descriptors.put(0, 0, corpus.descriptors[slot]);
+			library.add(descriptors);
+		}
+		matcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
+		matcher.add(library);
+		matcher.train();
+		query = new Mat(Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW, CvType.CV_8UC1);
+		query.put(0, 0, corpus.query(images / 2, 7));
+		matches = new MatOfDMatch();
+	}
+
+	@TearDown
+	public void tearDown() {
+		query.release();
+		matches.release();
+		matcher.clear();
+	}
+
+	@Benchmark
+	public MatOfDMatch bruteForceMatch() {
+		matcher.match(query, matches);
+		return matches;
+	}
+}
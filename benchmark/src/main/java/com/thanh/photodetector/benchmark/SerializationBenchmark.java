@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector.benchmark;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yaml.snakeyaml.Yaml;
+
+import com.thanh.photodetector.DescriptorFile;
+import com.thanh.photodetector.DescriptorPack;
+
+/*
+ * Reading and writing the descriptors of a whole library in each of the formats the detector supports: the legacy
+ * per-image YAML files, the binary per-image descriptor files, and the tour's single descriptor pack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class SerializationBenchmark {
+	// Number of training images in the library
+	@Param({"10", "100", "1000", "10000"})
+	public int images;
+
+	private Corpus corpus;
+	private File dir;
+	private File[] yaml_files;
+	private File[] binary_files;
+	private File pack_file;
+
+	@Setup
+	public void setup() throws IOException {
+		corpus = new Corpus(images);
+		dir = Corpus.createTempDirectory("serialization");
+		yaml_files = new File[images];
+		binary_files = new File[images];
+		for(int image = 0; image < images; ++image) {
+			String path = new File(dir, Corpus.imageName(image)).getPath();
+			yaml_files[image] = new File(path + DescriptorFile.YAML_EXTENSION);
+			binary_files[image] = new File(path + DescriptorFile.EXTENSION);
+		}
+		pack_file = new File(dir, DescriptorPack.FILENAME);
+
+		writeYaml();
+		writeBinary();
+		writePack();
+	}
+
+	@TearDown
+	public void tearDown() {
+		Corpus.deleteDirectory(dir);
+	}
+
+	// Same layout as the YAML files written before the binary format existed
+	@Benchmark
+	public void writeYaml() throws IOException {
+		Yaml yaml = new Yaml();
+		for(int image = 0; image < images; ++image) {
+			Map<String, Object> data = new HashMap<>();
+			data.put("type", Corpus.TYPE);
+			data.put("columns", Corpus.BYTES_PER_ROW);
+			data.put("rows", Corpus.DESCRIPTORS_PER_IMAGE);
+			data.put("bytes", corpus.descriptors[image]);
+			FileWriter writer = new FileWriter(yaml_files[image]);
+			try {
+				yaml.dump(data, writer);
+			} finally {
+				writer.close();
+			}
+		}
+	}
+
+	@Benchmark
+	public int readYaml() throws IOException {
+		Yaml yaml = new Yaml();
+		int total = 0;
+		for(int image = 0; image < images; ++image) {
+			FileReader reader = new FileReader(yaml_files[image]);
+			try {
+				Map<String, Object> data = (Map<String, Object>) yaml.load(reader);
+				total += ((byte[]) data.get("bytes")).length;
+			} finally {
+				reader.close();
+			}
+		}
+		return total;
+	}
+
+	@Benchmark
+	public void writeBinary() throws IOException {
+		for(int image = 0; image < images; ++image)
+			new DescriptorFile(Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW, Corpus.TYPE, corpus.descriptors[image], corpus.points[image]).write(binary_files[image]);
+	}
+
+	@Benchmark
+	public int readBinary() throws IOException {
+		int total = 0;
+		for(int image = 0; image < images; ++image)
+			total += DescriptorFile.read(binary_files[image]).bytes().length;
+		return total;
+	}
+
+	@Benchmark
+	public void writePack() throws IOException {
+		DescriptorPack pack = new DescriptorPack(Corpus.BYTES_PER_ROW, Corpus.TYPE);
+		for(int image = 0; image < images; ++image)
+			pack.add(Corpus.imageName(image), (int) corpus.items[image], Corpus.DESCRIPTORS_PER_IMAGE, corpus.descriptors[image], corpus.points[image]);
+		pack.write(pack_file);
+	}
+
+	@Benchmark
+	public int readPack() throws IOException {
+		return DescriptorPack.read(pack_file).totalRows();
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector.benchmark;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thanh.photodetector.SpatialIndex;
+
+/*
+ * GPS pruning of candidates: finding the tour items within the tour's item range of the user, as
+ * Tour.getItemIdsNear does. Compares SpatialIndex with measuring the distance to every item, as the filter it
+ * replaced did.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpatialIndexBenchmark {
+	// Number of geotagged items, spread over a city about 10 km across
+	@Param({"100", "1000", "10000"})
+	public int items;
+
+	// The tour's item range, in meters
+	@Param({"50"})
+	public double range;
+
+	private double[] latitudes;
+	private double[] longitudes;
+	private SpatialIndex index;
+	private BitSet near = new BitSet();
+	private double latitude;
+	private double longitude;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		int[] ids = new int[items];
+		latitudes = new double[items];
+		longitudes = new double[items];
+		for(int i = 0; i < items; ++i) {
+			ids[i] = i;
+			latitudes[i] = 40.65 + random.nextDouble() * 0.09;
+			longitudes[i] = -75.25 + random.nextDouble() * 0.12;
+		}
+		index = new SpatialIndex(ids, latitudes, longitudes, items);
+
+		// stand next to an item, so there's something to find
+		latitude = latitudes[0] + 0.0001;
+		longitude = longitudes[0];
+	}
+
+	@Benchmark
+	public int spatialIndex() {
+		near.clear();
+		return index.within(latitude, longitude, range, near);
+	}
+
+	@Benchmark
+	public int linearScan() {
+		near.clear();
+		int found = 0;
+		for(int i = 0; i < items; ++i) {
+			if(SpatialIndex.distance(latitude, longitude, latitudes[i], longitudes[i]) < range) {
+				near.set(i);
+				++found;
+			}
+		}
+		return found;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector.benchmark;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.yaml.snakeyaml.Yaml;
+
+import com.thanh.photodetector.DescriptorPack;
+import com.thanh.photodetector.HammingMatcher;
+import com.thanh.photodetector.InvertedIndex;
+import com.thanh.photodetector.Vocabulary;
+
+/*
+ * Loading a tour, as Tour.loadFromFile does: parsing "tour.yaml", reading the descriptor pack and the bag-of-words
+ * files, and adding every image to the matcher and the inverted file.
+ *
+ * Tour itself needs Android (for logging and locations), so this repeats its steps on the same files rather than
+ * calling it. Keep it in step with Tour.loadFromFile and ImageDetector.register.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TourLoadBenchmark {
+	// Number of training images in the tour
+	@Param({"10", "100", "1000", "10000"})
+	public int images;
+
+	private File dir;
+	private File tour_file;
+	private File header_file;
+
+	@Setup
+	public void setup() throws IOException {
+		Corpus corpus = new Corpus(images);
+		dir = Corpus.createTempDirectory("tour");
+		tour_file = new File(dir, "tour.yaml");
+		header_file = new File(dir, "header.yaml");
+
+		// same layout as Tour.saveToMap and TourItem.saveToMap
+		Random random = new Random(42);
+		ArrayList<Map<String, Object>> item_maps = new ArrayList<>();
+		for(int item = 0; item < corpus.itemCount(); ++item) {
+			Map<String, Object> data = new HashMap<>();
+			data.put("name", "Item " + item);
+			data.put("description", "Description of item " + item);
+			data.put("directions", "Directions to item " + item);
+			ArrayList<String> filenames = new ArrayList<>();
+			for(int image = item * Corpus.IMAGES_PER_ITEM; image < Math.min(images, (item + 1) * Corpus.IMAGES_PER_ITEM); ++image)
+				filenames.add(Corpus.imageName(image));
+			data.put("main_image", filenames.get(0));
+			data.put("images", filenames);
+			Map<String, Object> gps_data = new HashMap<>();
+			gps_data.put("accuracy", 10.0f);
+			gps_data.put("latitude", 40.7 + random.nextDouble() / 100);
+			gps_data.put("longitude", -75.2 + random.nextDouble() / 100);
+			data.put("location", gps_data);
+			data.put("audio_filename", "Item " + item + item + ".3gp");
+			item_maps.add(data);
+		}
+		Map<String, Object> data = new HashMap<>();
+		data.put("gps_enabled", true);
+		data.put("name", "Benchmark tour");
+		data.put("enforce_order", false);
+		data.put("item_range", 50.0);
+		data.put("items", item_maps);
+		writeYaml(data, tour_file);
+
+		Map<String, Object> header = new HashMap<>();
+		header.put("name", "Benchmark tour");
+		header.put("item_count", corpus.itemCount());
+		header.put("thumbnail", Corpus.imageName(0));
+		writeYaml(header, header_file);
+
+		DescriptorPack pack = new DescriptorPack(Corpus.BYTES_PER_ROW, Corpus.TYPE);
+		for(int image = 0; image < images; ++image)
+			pack.add(Corpus.imageName(image), (int) corpus.items[image], Corpus.DESCRIPTORS_PER_IMAGE, corpus.descriptors[image], corpus.points[image]);
+		pack.write(new File(dir, DescriptorPack.FILENAME));
+
+		// a small vocabulary is enough here: only reading it and the bags is measured
+		int words = HammingMatcher.wordsPerRow(Corpus.BYTES_PER_ROW);
+		long[] sample = HammingMatcher.pack(corpus.descriptors[0], Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW, null);
+		Vocabulary vocabulary = Vocabulary.train(sample, Corpus.DESCRIPTORS_PER_IMAGE, words, 256, 2, random);
+		vocabulary.write(new File(dir, Vocabulary.FILENAME));
+		InvertedIndex inverted_index = new InvertedIndex(vocabulary.size());
+		List<String> names = new ArrayList<>();
+		long[] packed = null;
+		int[] image_words = null;
+		for(int image = 0; image < images; ++image) {
+			packed = HammingMatcher.pack(corpus.descriptors[image], Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW, packed);
+			image_words = vocabulary.quantize(packed, Corpus.DESCRIPTORS_PER_IMAGE, image_words);
+			inverted_index.add(image, InvertedIndex.Bag.of(image_words, Corpus.DESCRIPTORS_PER_IMAGE, vocabulary.size()));
+			names.add(Corpus.imageName(image));
+		}
+		inverted_index.write(new File(dir, InvertedIndex.FILENAME), vocabulary, names);
+	}
+
+	@TearDown
+	public void tearDown() {
+		Corpus.deleteDirectory(dir);
+	}
+
+	private static void writeYaml(Map<String, Object> data, File file) throws IOException {
+		FileWriter writer = new FileWriter(file);
+		try {
+			new Yaml().dump(data, writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private static Map<String, Object> readYaml(File file) throws IOException {
+		FileReader reader = new FileReader(file);
+		try {
+			return (Map<String, Object>) new Yaml().load(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	// What the tour list reads for each tour
+	@Benchmark
+	public Object loadHeader() throws IOException {
+		return readYaml(header_file).get("item_count");
+	}
+
+	@Benchmark
+	public Object parseTour() throws IOException {
+		return readYaml(tour_file).get("items");
+	}
+
+	@Benchmark
+	public int loadFromFile() throws IOException {
+		Map<String, Object> data = readYaml(tour_file);
+		DescriptorPack pack = DescriptorPack.read(new File(dir, DescriptorPack.FILENAME));
+		Vocabulary vocabulary = Vocabulary.read(new File(dir, Vocabulary.FILENAME));
+		Map<String, InvertedIndex.Bag> stored_bags = InvertedIndex.read(new File(dir, InvertedIndex.FILENAME), vocabulary);
+
+		Map<String, DescriptorPack.Entry> entries = new HashMap<>();
+		for(DescriptorPack.Entry entry : pack.entries())
+			entries.put(entry.name, entry);
+
+		// register every image of every item, in tour order
+		HammingMatcher matcher = new HammingMatcher();
+		InvertedIndex inverted_index = new InvertedIndex(vocabulary.size());
+		byte[] bytes = pack.bytes();
+		int bytes_per_row = pack.cols();
+		byte[] image_bytes = new byte[0];
+		int slot = 0;
+		for(Map<String, Object> item : (ArrayList<Map<String, Object>>) data.get("items")) {
+			for(String image : (ArrayList<String>) item.get("images")) {
+				DescriptorPack.Entry entry = entries.get(image);
+				int length = entry.rows * bytes_per_row;
+				if(image_bytes.length < length)
+					image_bytes = new byte[length];
+				System.arraycopy(bytes, entry.row * bytes_per_row, image_bytes, 0, length);
+				pack.points(entry);
+				matcher.add(slot, image_bytes, entry.rows, bytes_per_row);
+				inverted_index.add(slot, stored_bags.get(image));
+				++slot;
+			}
+		}
+		return matcher.size();
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector.benchmark;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.thanh.photodetector.MatchResult;
+import com.thanh.photodetector.VoteCounter;
+
+/*
+ * Voting stage of findBestMatch: counting the matches of each training image and finding the best image and the
+ * runner-up from another item. Compares VoteCounter with the HashMap-based counting it replaced.
+ *
+ * Run with the GC profiler (the jmh task does) and compare gc.alloc.rate.norm, the bytes allocated per query.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VotingBenchmark {
+	// Number of training images in the library
+	@Param({"10", "100", "1000", "10000"})
+	public int images;
+
+	// Number of descriptors in the query
+	@Param({"500"})
+	public int query_descriptors;
+
+	private MatchResult matches;
+	private long[] slot_items;
+	private Object[] library;   // stands in for the TrainingImages the old code used as keys
+	private VoteCounter votes;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		slot_items = new long[images];
+		library = new Object[images];
+		for(int slot = 0; slot < images; ++slot) {
+			slot_items[slot] = slot / Corpus.IMAGES_PER_ITEM;
+			library[slot] = new Object();
+		}
+
+		// a third of the descriptors match the right image, a third match random images, and the rest don't survive filtering
+		matches = new MatchResult();
+		matches.reset(query_descriptors);
+		int right = random.nextInt(images);
+		for(int i = 0; i < query_descriptors; ++i) {
+			switch(i % 3) {
+				case 0:
+					matches.train_slot[i] = right;
+					break;
+				case 1:
+					matches.train_slot[i] = random.nextInt(images);
+					break;
+				default:
+					matches.train_slot[i] = -1;
+			}
+		}
+		votes = new VoteCounter();
+	}
+
+	@Benchmark
+	public int voteCounter() {
+		votes.count(matches, images);
+		votes.rank(slot_items);
+		return votes.bestSlot();
+	}
+
+	// The previous implementation: boxed counts in a HashMap, copied into a second map by the location filter
+	@Benchmark
+	public Object hashMap() {
+		HashMap<Object,Integer> hm = new HashMap<Object,Integer>();
+		for(int i = 0; i < matches.count; ++i) {
+			if(matches.train_slot[i] < 0)
+				continue;
+			Object image = library[matches.train_slot[i]];
+			if(hm.get(image) == null)
+				hm.put(image, 1);
+			else
+				hm.put(image, hm.get(image) + 1);
+		}
+
+		HashMap<Object,Integer> filtered = new HashMap<Object,Integer>();
+		for(Object image : hm.keySet())
+			filtered.put(image, hm.get(image));
+
+		Object best = null;
+		Object second = null;
+		for(Object image : filtered.keySet()) {
+			if(best == null) {
+				best = image;
+			} else if(filtered.get(image) > filtered.get(best)) {
+				second = best;
+				best = image;
+			} else if(second == null || filtered.get(image) > filtered.get(second)) {
+				second = image;
+			}
+		}
+		return best;
+	}
+}
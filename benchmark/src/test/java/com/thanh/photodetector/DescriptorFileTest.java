@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import com.thanh.photodetector.benchmark.Corpus;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/*
+ * Checks that descriptor files survive a round trip through disk, and that corrupt headers are rejected
+ */
+public class DescriptorFileTest {
+	// Offsets of the row count and the data length in the header
+	private static final int ROWS_OFFSET = 2 * 4;
+	private static final int LENGTH_OFFSET = 5 * 4;
+
+	@Test
+	public void roundTrip() throws IOException {
+		Corpus corpus = new Corpus(1);
+		DescriptorFile data = new DescriptorFile(Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW, Corpus.TYPE,
+				corpus.descriptors[0], corpus.points[0]);
+		File dir = Corpus.createTempDirectory("DescriptorFileTest");
+		try {
+			File file = new File(dir, Corpus.imageName(0) + DescriptorFile.EXTENSION);
+			data.write(file);
+			DescriptorFile read = DescriptorFile.read(file);
+			assertEquals(data.rows(), read.rows());
+			assertEquals(data.cols(), read.cols());
+			assertEquals(data.type(), read.type());
+			assertArrayEquals(data.bytes(), read.bytes());
+			assertArrayEquals(data.points(), read.points(), 0);
+			assertEquals(false, new File(file.getPath() + ".tmp").exists());
+		} finally {
+			Corpus.deleteDirectory(dir);
+		}
+	}
+
+	/*
+	 * A header whose data length doesn't match its rows and columns is rejected, even though its checksum is right
+	 */
+	@Test
+	public void rejectsLengthMismatch() {
+		byte[] bytes = new byte[4 * Corpus.BYTES_PER_ROW];
+		Arrays.fill(bytes, (byte) 0x5A);
+		ByteBuffer buffer = new DescriptorFile(4, Corpus.BYTES_PER_ROW, Corpus.TYPE, bytes).toBuffer();
+		// claim one row fewer than the data holds
+		buffer.putInt(ROWS_OFFSET, 3);
+		try {
+			DescriptorFile.read(buffer, "test");
+			fail("read a header with the wrong length");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void rejectsTruncatedData() {
+		ByteBuffer buffer = new DescriptorFile(4, Corpus.BYTES_PER_ROW, Corpus.TYPE, new byte[4 * Corpus.BYTES_PER_ROW]).toBuffer();
+		buffer.putInt(LENGTH_OFFSET, 8 * Corpus.BYTES_PER_ROW);
+		try {
+			DescriptorFile.read(buffer, "test");
+			fail("read a file shorter than its header says");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
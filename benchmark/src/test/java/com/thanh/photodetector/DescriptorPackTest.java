@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import com.thanh.photodetector.benchmark.Corpus;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/*
+ * Checks that packs survive a round trip through disk, and that a corrupt table of contents is rejected rather than
+ * handed to the detector
+ */
+public class DescriptorPackTest {
+	private static final int IMAGES = 3;
+
+	// Size of the header, and offset of the first entry's first row in a pack of corpus images
+	private static final int HEADER_SIZE = 9 * 4;
+	private static final int FIRST_ROW_OFFSET = HEADER_SIZE + 2 + Corpus.imageName(0).length() + 4;
+
+	@Test
+	public void roundTrip() throws IOException {
+		Corpus corpus = new Corpus(IMAGES);
+		File dir = Corpus.createTempDirectory("DescriptorPackTest");
+		try {
+			File file = new File(dir, DescriptorPack.FILENAME);
+			pack(corpus).write(file);
+			DescriptorPack pack = DescriptorPack.read(file);
+			assertEquals(IMAGES, pack.entries().size());
+			assertEquals(IMAGES * Corpus.DESCRIPTORS_PER_IMAGE, pack.totalRows());
+			for(int image = 0; image < IMAGES; ++image) {
+				DescriptorPack.Entry entry = pack.entries().get(image);
+				assertEquals(Corpus.imageName(image), entry.name);
+				assertEquals(image * Corpus.DESCRIPTORS_PER_IMAGE, entry.row);
+				assertArrayEquals(corpus.points[image], pack.points(entry), 0);
+			}
+		} finally {
+			Corpus.deleteDirectory(dir);
+		}
+	}
+
+	/*
+	 * An entry reaching outside the descriptors is rejected before it can reach the detector
+	 */
+	@Test
+	public void rejectsEntryOutsideDescriptors() {
+		ByteBuffer buffer = pack(new Corpus(IMAGES)).toBuffer();
+		buffer.putInt(FIRST_ROW_OFFSET, IMAGES * Corpus.DESCRIPTORS_PER_IMAGE);
+		assertCorrupt(buffer);
+
+		buffer = pack(new Corpus(IMAGES)).toBuffer();
+		buffer.putInt(FIRST_ROW_OFFSET, -1);
+		assertCorrupt(buffer);
+	}
+
+	/*
+	 * A table of contents that still fits the descriptors, but was changed, fails the checksum
+	 */
+	@Test
+	public void rejectsChangedTableOfContents() {
+		ByteBuffer buffer = pack(new Corpus(IMAGES)).toBuffer();
+		buffer.putInt(FIRST_ROW_OFFSET, Corpus.DESCRIPTORS_PER_IMAGE);
+		assertCorrupt(buffer);
+	}
+
+	@Test
+	public void rejectsTruncatedTableOfContents() {
+		ByteBuffer buffer = pack(new Corpus(IMAGES)).toBuffer();
+		buffer.limit(FIRST_ROW_OFFSET);
+		assertCorrupt(buffer);
+	}
+
+	private static DescriptorPack pack(Corpus corpus) {
+		DescriptorPack pack = new DescriptorPack(Corpus.BYTES_PER_ROW, Corpus.TYPE);
+		for(int image = 0; image < corpus.images; ++image)
+			pack.add(Corpus.imageName(image), (int) corpus.items[image], Corpus.DESCRIPTORS_PER_IMAGE, corpus.descriptors[image], corpus.points[image]);
+		return pack;
+	}
+
+	private static void assertCorrupt(ByteBuffer buffer) {
+		try {
+			DescriptorPack.read(buffer, "test");
+			fail("read a corrupt pack");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Checks that a library larger than the cache's budget doesn't thrash: queries over every image never read evicted
+ * images back, and a detector that isn't budgeted keeps its whole library in memory
+ */
+public class DescriptorPagerTest {
+	// Library of IMAGES images of IMAGE_BYTES each, four times the budget
+	private static final int IMAGES = 100;
+	private static final long IMAGE_BYTES = 1000;
+	private static final long BUDGET = IMAGES * IMAGE_BYTES / 4;
+
+	/*
+	 * Runs the cache's evictions when asked, rather than on a background thread
+	 */
+	private static class QueuedExecutor implements Executor {
+		final List<Runnable> queue = new ArrayList<>();
+
+		@Override
+		public void execute(Runnable command) {
+			queue.add(command);
+		}
+
+		void runAll() {
+			while(!queue.isEmpty())
+				queue.remove(0).run();
+		}
+	}
+
+	/*
+	 * Evicts the images of the blocks the cache chooses, the way the detector does once their files are written
+	 */
+	private static class Owner implements DescriptorCache.Owner {
+		DescriptorPager pager;
+
+		@Override
+		public void evict(List<DescriptorCache.Block> blocks) {
+			for(DescriptorCache.Block block : blocks) {
+				if(pager.owns(block))
+					pager.evicted(block.slot());
+			}
+		}
+	}
+
+	@Test
+	public void unfilteredQueryReadsNothingBack() {
+		QueuedExecutor executor = new QueuedExecutor();
+		DescriptorCache cache = new DescriptorCache(BUDGET, executor);
+		DescriptorPager pager = pager(cache, true);
+		executor.runAll();
+		int evicted = pager.evictedSlots().cardinality();
+		assertTrue("only " + evicted + " images were evicted", evicted >= IMAGES / 2);
+		assertTrue(cache.size() <= BUDGET);
+
+		for(int query = 0; query < 10; ++query) {
+			BitSet read_back = pager.use(null);
+			assertTrue("an unfiltered query read back " + read_back.cardinality() + " images", read_back.isEmpty());
+			executor.runAll();
+		}
+		assertEquals(evicted, pager.evictedSlots().cardinality());
+		assertEquals(0, cache.evictions() - evicted);
+		assertEquals(10L * evicted, cache.misses());
+	}
+
+	@Test
+	public void filteredQueryReadsBackItsImages() {
+		QueuedExecutor executor = new QueuedExecutor();
+		DescriptorCache cache = new DescriptorCache(BUDGET, executor);
+		DescriptorPager pager = pager(cache, true);
+		executor.runAll();
+
+		BitSet admissible = new BitSet();
+		admissible.set(0, 10);
+		BitSet expected = pager.evictedSlots();
+		expected.and(admissible);
+		assertEquals(expected, pager.use(admissible));
+	}
+
+	@Test
+	public void unbudgetedLibraryStaysInMemory() {
+		QueuedExecutor executor = new QueuedExecutor();
+		DescriptorCache cache = new DescriptorCache(BUDGET, executor);
+		DescriptorPager pager = pager(cache, false);
+		executor.runAll();
+
+		assertEquals(0, cache.blocks());
+		assertTrue(pager.evictedSlots().isEmpty());
+		assertEquals(IMAGES * IMAGE_BYTES, pager.residentBytes());
+		assertTrue(pager.use(null).isEmpty());
+	}
+
+	/*
+	 * Unbudgeting a pager takes its images out of the cache, and hands back the evicted ones to read back
+	 */
+	@Test
+	public void unbudgetingReturnsEvictedImages() {
+		QueuedExecutor executor = new QueuedExecutor();
+		DescriptorCache cache = new DescriptorCache(BUDGET, executor);
+		DescriptorPager pager = pager(cache, true);
+		executor.runAll();
+
+		BitSet evicted = pager.evictedSlots();
+		assertEquals(evicted, pager.setBudgeted(false));
+		assertEquals(0, cache.blocks());
+		for(int slot = evicted.nextSetBit(0); slot >= 0; slot = evicted.nextSetBit(slot + 1))
+			pager.readBack(slot);
+		assertEquals(IMAGES * IMAGE_BYTES, pager.residentBytes());
+		assertEquals(0, cache.size());
+	}
+
+	private static DescriptorPager pager(DescriptorCache cache, boolean budgeted) {
+		Owner owner = new Owner();
+		DescriptorPager pager = new DescriptorPager(cache, owner);
+		owner.pager = pager;
+		pager.setBudgeted(budgeted);
+		for(int slot = 0; slot < IMAGES; ++slot)
+			pager.add(slot, IMAGE_BYTES);
+		return pager;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Lafayette College
+ *
+ * This file is part of OpenCVTour.
+ *
+ * OpenCVTour is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenCVTour is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenCVTour.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.thanh.photodetector;
+
+import com.thanh.photodetector.benchmark.Corpus;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Checks that the default LSH settings keep finding the true nearest neighbours, so tuning the knobs for speed can't
+ * silently cost recognition accuracy.
+ *
+ * Recall is the fraction of query descriptors for which the LshMatcher finds a neighbour as close as the one an
+ * exhaustive HammingMatcher finds, over the same descriptors.
+ */
+public class LshMatcherTest {
+	// Lowest recall the default settings may have on a query. They reach 0.98 or more on both kinds of library.
+	private static final double MIN_RECALL = 0.95;
+
+	// Library size, well above LshMatcher.DEFAULT_MIN_INDEXED_ROWS, so queries go through the index
+	private static final int IMAGES = 100;
+
+	// Bits flipped between a cluster's center and its descriptors, and between a descriptor and its query (about as
+	// far as a real photo's descriptors are from their match)
+	private static final int CLUSTER_NOISE_BITS = 24;
+	private static final int QUERY_NOISE_BITS = 40;
+	private static final int DESCRIPTORS_PER_CLUSTER = 10;
+
+	private static final long SEED = 7;
+
+	/*
+	 * Random descriptors, as in the benchmarks: every query has a single clear nearest neighbour
+	 */
+	@Test
+	public void recallOnRandomDescriptors() {
+		Corpus corpus = new Corpus(IMAGES);
+		HammingMatcher exact = new HammingMatcher();
+		LshMatcher lsh = new LshMatcher();
+		for(int image = 0; image < corpus.images; ++image) {
+			exact.add(image, corpus.descriptors[image], Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW);
+			lsh.add(image, corpus.descriptors[image], Corpus.DESCRIPTORS_PER_IMAGE, Corpus.BYTES_PER_ROW);
+		}
+
+		for(int image = 0; image < corpus.images; image += 10) {
+			double recall = recall(lsh, exact, corpus.query(image, SEED + image), Corpus.DESCRIPTORS_PER_IMAGE);
+			assertTrue("recall " + recall + " on a query of image " + image, recall >= MIN_RECALL);
+		}
+	}
+
+	/*
+	 * Descriptors in tight clusters, like the repeated texture of a real tour item, so the nearest neighbour of a
+	 * query has close competitors
+	 */
+	@Test
+	public void recallOnClusteredDescriptors() {
+		Random random = new Random(SEED);
+		int rows = Corpus.DESCRIPTORS_PER_IMAGE;
+		HammingMatcher exact = new HammingMatcher();
+		LshMatcher lsh = new LshMatcher();
+		byte[][] descriptors = new byte[IMAGES][];
+		for(int image = 0; image < IMAGES; ++image) {
+			descriptors[image] = new byte[rows * Corpus.BYTES_PER_ROW];
+			byte[] center = new byte[Corpus.BYTES_PER_ROW];
+			for(int row = 0; row < rows; ++row) {
+				if(row % DESCRIPTORS_PER_CLUSTER == 0)
+					random.nextBytes(center);
+				System.arraycopy(center, 0, descriptors[image], row * Corpus.BYTES_PER_ROW, Corpus.BYTES_PER_ROW);
+			}
+			flipBits(descriptors[image], rows, CLUSTER_NOISE_BITS, random);
+			exact.add(image, descriptors[image], rows, Corpus.BYTES_PER_ROW);
+			lsh.add(image, descriptors[image], rows, Corpus.BYTES_PER_ROW);
+		}
+
+		for(int image = 0; image < IMAGES; image += 10) {
+			byte[] query = descriptors[image].clone();
+			flipBits(query, rows, QUERY_NOISE_BITS, random);
+			double recall = recall(lsh, exact, query, rows);
+			assertTrue("recall " + recall + " on a query of image " + image, recall >= MIN_RECALL);
+		}
+	}
+
+	/*
+	 * @return the fraction of query descriptors for which lsh finds a neighbour as close as exact does
+	 */
+	private static double recall(LshMatcher lsh, HammingMatcher exact, byte[] query_descriptors, int query_rows) {
+		long[] query = HammingMatcher.pack(query_descriptors, query_rows, Corpus.BYTES_PER_ROW, null);
+		MatchResult expected = new MatchResult();
+		MatchResult actual = new MatchResult();
+		exact.match(query, query_rows, expected);
+		lsh.match(query, query_rows, actual);
+
+		int found = 0;
+		for(int q = 0; q < query_rows; ++q) {
+			if(actual.distance[q] <= expected.distance[q])
+				++found;
+		}
+		return (double) found / query_rows;
+	}
+
+	// Flips the given number of random bits in every row
+	private static void flipBits(byte[] descriptors, int rows, int bits, Random random) {
+		for(int row = 0; row < rows; ++row) {
+			for(int i = 0; i < bits; ++i) {
+				int bit = random.nextInt(Corpus.BYTES_PER_ROW * 8);
+				descriptors[row * Corpus.BYTES_PER_ROW + bit / 8] ^= 1 << (bit % 8);
+			}
+		}
+	}
+}
@@ -25,20 +25,25 @@ import org.opencv.imgproc.Imgproc;
  * disconnectCamera - closes the camera and stops preview.
  * When frame is delivered via callback from Camera - it processed via OpenCV to be
  * converted to RGBA32 and then passed to the external callback for modifications if required.
+ *
+ * The camera fills a pool of callback buffers. The preview callback only hands the latest buffer
+ * to the processing thread; frames that arrive while it is busy replace the pending one and are
+ * given back to the camera without being copied. The processing thread copies the frame it takes
+ * once and returns the buffer right away, and converts it to RGBA only if rgba() is called.
  */
 public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallback {
 
     private static final int MAGIC_TEXTURE_ID = 10;
     private static final String TAG = "JavaCameraView";
+    private static final int BUFFER_COUNT = 3;
 
-    private byte mBuffer[];
-    private Mat[] mFrameChain;
-    private int mChainIdx = 0;
+    private byte[] mPendingBuffer;
+    private Mat mFrame;
     private Thread mThread;
     private boolean mStopThread;
 
     protected Camera mCamera;
-    protected JavaCameraFrame[] mCameraFrame;
+    protected JavaCameraFrame mCameraFrame;
     private SurfaceTexture mSurfaceTexture;
 
     public static class JavaCameraSizeAccessor implements ListItemAccessor {
@@ -174,20 +179,15 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
                     int size = mFrameWidth * mFrameHeight;
                     size  = size * ImageFormat.getBitsPerPixel(params.getPreviewFormat()) / 8;
-                    mBuffer = new byte[size];
-
-                    mCamera.addCallbackBuffer(mBuffer);
+                    for (int i = 0; i < BUFFER_COUNT; i++)
+                        mCamera.addCallbackBuffer(new byte[size]);
                     mCamera.setPreviewCallbackWithBuffer(this);
 
-                    mFrameChain = new Mat[2];
-                    mFrameChain[0] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
-                    mFrameChain[1] = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
+                    mFrame = new Mat(mFrameHeight + (mFrameHeight/2), mFrameWidth, CvType.CV_8UC1);
 
                     AllocateCache();
 
-                    mCameraFrame = new JavaCameraFrame[2];
-                    mCameraFrame[0] = new JavaCameraFrame(mFrameChain[0], mFrameWidth, mFrameHeight);
-                    mCameraFrame[1] = new JavaCameraFrame(mFrameChain[1], mFrameWidth, mFrameHeight);
+                    mCameraFrame = new JavaCameraFrame(mFrame, mFrameWidth, mFrameHeight);
 
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
                         mSurfaceTexture = new SurfaceTexture(MAGIC_TEXTURE_ID);
@@ -219,19 +219,18 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
                 mCamera.release();
             }
             mCamera = null;
-            if (mFrameChain != null) {
-                mFrameChain[0].release();
-                mFrameChain[1].release();
-            }
+            mPendingBuffer = null;
             if (mCameraFrame != null) {
-                mCameraFrame[0].release();
-                mCameraFrame[1].release();
+                mCameraFrame.release();
+                mCameraFrame = null;
+            }
+            if (mFrame != null) {
+                mFrame.release();
+                mFrame = null;
             }
         }
     }
 
-    private boolean mCameraFrameReady = false;
-
     @Override
     protected boolean connectCamera(int width, int height) {
 
@@ -243,8 +242,6 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         if (!initializeCamera(width, height))
             return false;
 
-        mCameraFrameReady = false;
-
         /* now we can start update thread */
         Log.d(TAG, "Starting processing thread");
         mStopThread = false;
@@ -277,31 +274,41 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
 
         /* Now release camera */
         releaseCamera();
-
-        mCameraFrameReady = false;
     }
 
     @Override
     public void onPreviewFrame(byte[] frame, Camera arg1) {
-        Log.d(TAG, "Preview Frame received. Frame size: " + frame.length);
+        /* No logging or copying here: this runs for every frame the camera produces */
+        byte[] dropped;
         synchronized (this) {
-            mFrameChain[mChainIdx].put(0, 0, frame);
-            mCameraFrameReady = true;
+            if (mCamera == null)
+                return;     /* late frame from a released camera */
+            dropped = mPendingBuffer;
+            mPendingBuffer = frame;
             this.notify();
         }
+        if (dropped != null)
+            returnBuffer(dropped);
+    }
+
+    /** Gives a callback buffer back to the camera, to be filled with a later frame */
+    private synchronized void returnBuffer(byte[] buffer) {
         if (mCamera != null)
-            mCamera.addCallbackBuffer(mBuffer);
+            mCamera.addCallbackBuffer(buffer);
     }
 
     private class JavaCameraFrame implements CvCameraViewFrame {
         @Override
         public Mat gray() {
-            return mYuvFrameData.submat(0, mHeight, 0, mWidth);
+            return mGray;
         }
 
         @Override
         public Mat rgba() {
-            Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+            if (!mRgbaValid) {
+                Imgproc.cvtColor(mYuvFrameData, mRgba, Imgproc.COLOR_YUV2RGBA_NV21, 4);
+                mRgbaValid = true;
+            }
             return mRgba;
         }
 
@@ -310,15 +317,24 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             mWidth = width;
             mHeight = height;
             mYuvFrameData = Yuv420sp;
+            mGray = mYuvFrameData.submat(0, mHeight, 0, mWidth);
             mRgba = new Mat();
         }
 
+        /** Called when mYuvFrameData holds a new frame */
+        public void invalidate() {
+            mRgbaValid = false;
+        }
+
         public void release() {
+            mGray.release();
             mRgba.release();
         }
 
         private Mat mYuvFrameData;
+        private Mat mGray;
         private Mat mRgba;
+        private boolean mRgbaValid;
         private int mWidth;
         private int mHeight;
     };
@@ -328,22 +344,27 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
         @Override
         public void run() {
             do {
+                byte[] buffer;
                 synchronized (JavaCameraView.this) {
                     try {
-                        while (!mCameraFrameReady && !mStopThread) {
+                        while (mPendingBuffer == null && !mStopThread) {
                             JavaCameraView.this.wait();
                         }
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
-                    if (mCameraFrameReady)
-                        mChainIdx = 1 - mChainIdx;
+                    buffer = mPendingBuffer;
+                    mPendingBuffer = null;
                 }
 
-                if (!mStopThread && mCameraFrameReady) {
-                    mCameraFrameReady = false;
-                    if (!mFrameChain[1 - mChainIdx].empty())
-                        deliverAndDrawFrame(mCameraFrame[1 - mChainIdx]);
+                if (buffer != null) {
+                    /* the camera can refill the buffer as soon as the frame is copied out of it */
+                    mFrame.put(0, 0, buffer);
+                    returnBuffer(buffer);
+                    if (!mStopThread) {
+                        mCameraFrame.invalidate();
+                        deliverAndDrawFrame(mCameraFrame);
+                    }
                 }
             } while (!mStopThread);
             Log.d(TAG, "Finish processing thread");